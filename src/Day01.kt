@@ -1,3 +1,11 @@
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveTask
+
 val spellings = hashMapOf(
         "one" to 1,
         "two" to 2,
@@ -11,11 +19,145 @@ val spellings = hashMapOf(
         "zero" to 0
 )
 
-data class Digit(val value: Int, val index: Int)
+private val asciiDigits = (0..9).associateBy { it.toString() }
+
+/**
+ * Finds the first and last digit of a line, recognizing ASCII digits and the given spellings together.
+ *
+ * Two Aho-Corasick automata are compiled once: one over the words, used to scan forward until the first
+ * match, and one over the reversed words, used to scan backward until the last match. No digit word is
+ * contained in another, so the first match to end is also the first one to start.
+ */
+class DigitMatcher(spellings: Map<String, Int>) {
+    private val forward = DigitAutomaton(asciiDigits + spellings)
+    private val backward = DigitAutomaton((asciiDigits + spellings).mapKeys { it.key.reversed() })
+
+    fun firstDigit(line: CharSequence): Int {
+        var state = 0
+        for (i in line.indices) {
+            state = forward.next(state, line[i].code)
+            if (forward.output(state) >= 0) return forward.output(state)
+        }
+        return -1
+    }
+
+    fun lastDigit(line: CharSequence): Int {
+        var state = 0
+        for (i in line.length - 1 downTo 0) {
+            state = backward.next(state, line[i].code)
+            if (backward.output(state) >= 0) return backward.output(state)
+        }
+        return -1
+    }
+
+    fun firstDigit(bytes: ByteBuffer, from: Int, to: Int): Int {
+        var state = 0
+        for (i in from..<to) {
+            state = forward.next(state, bytes.get(i).toInt())
+            if (forward.output(state) >= 0) return forward.output(state)
+        }
+        return -1
+    }
+
+    fun lastDigit(bytes: ByteBuffer, from: Int, to: Int): Int {
+        var state = 0
+        for (i in to - 1 downTo from) {
+            state = backward.next(state, bytes.get(i).toInt())
+            if (backward.output(state) >= 0) return backward.output(state)
+        }
+        return -1
+    }
 
-data class CalibrationValue(val firstDigit: Digit, val lastDigit: Digit)
+    /**
+     * Returns the two digit calibration value of the line, or -1 if it has no digits.
+     */
+    fun calibrationValue(line: CharSequence): Int {
+        val first = firstDigit(line)
+        if (first < 0) return -1
+        return 10 * first + lastDigit(line)
+    }
 
-fun main() {
+    /**
+     * Same as [calibrationValue], for a line stored as ASCII bytes in `bytes[from, to)`.
+     */
+    fun calibrationValue(bytes: ByteBuffer, from: Int, to: Int): Int {
+        val first = firstDigit(bytes, from, to)
+        if (first < 0) return -1
+        return 10 * first + lastDigit(bytes, from, to)
+    }
+}
+
+/**
+ * Aho-Corasick automaton compiled to a dense transition table over the ASCII alphabet.
+ * Characters outside of it always lead back to the root.
+ */
+private class DigitAutomaton(words: Map<String, Int>) {
+    private val transitions: IntArray
+    private val outputs: IntArray
+
+    init {
+        val trie = mutableListOf(IntArray(ALPHABET) { -1 })
+        val values = mutableListOf(-1)
+        for ((word, value) in words) {
+            var state = 0
+            for (c in word) {
+                if (trie[state][c.code] < 0) {
+                    trie[state][c.code] = trie.size
+                    trie.add(IntArray(ALPHABET) { -1 })
+                    values.add(-1)
+                }
+                state = trie[state][c.code]
+            }
+            values[state] = value
+        }
+
+        transitions = IntArray(trie.size * ALPHABET)
+        outputs = values.toIntArray()
+        val fail = IntArray(trie.size)
+        val queue = ArrayDeque<Int>()
+        for (c in 0..<ALPHABET) {
+            val child = trie[0][c]
+            if (child > 0) {
+                queue.addLast(child)
+                transitions[c] = child
+            }
+        }
+        while (queue.isNotEmpty()) {
+            val state = queue.removeFirst()
+            if (outputs[state] < 0) outputs[state] = outputs[fail[state]]
+            for (c in 0..<ALPHABET) {
+                val child = trie[state][c]
+                if (child > 0) {
+                    fail[child] = transitions[fail[state] * ALPHABET + c]
+                    transitions[state * ALPHABET + c] = child
+                    queue.addLast(child)
+                } else {
+                    transitions[state * ALPHABET + c] = transitions[fail[state] * ALPHABET + c]
+                }
+            }
+        }
+    }
+
+    fun next(state: Int, c: Int) = if (c in 0..<ALPHABET) transitions[state * ALPHABET + c] else 0
+
+    fun output(state: Int) = outputs[state]
+
+    companion object {
+        const val ALPHABET = 128
+    }
+}
+
+data class CalibrationSums(val part1: Long, val part2: Long) {
+    operator fun plus(other: CalibrationSums) = CalibrationSums(part1 + other.part1, part2 + other.part2)
+}
+
+fun main(args: Array<String>) {
+    if ("--mmap" in args) {
+        val sums = sumCalibrationValuesMapped(inputPath("input"))
+        println("Part 1: ${sums.part1}")
+        println("Part 2: ${sums.part2}")
+        return
+    }
     val input = readInput("input")
 
     val part1Result = part1(input)
@@ -26,72 +168,112 @@ fun main() {
 }
 
 private fun part1(input: List<String>): Int {
-    return input.sumOf { line ->
-        val calibrationValue = firstAndLastDigit(line)
-        if (calibrationValue == null) {
-            throw Exception("No digits found in $line")
-        } else
-        calibrationValue.lastDigit.value + 10 * calibrationValue.firstDigit.value
-    }
+    return sumCalibrationValues(input, DigitMatcher(emptyMap()))
 }
 
 private fun part2(input: List<String>): Int {
-    return input.sumOf { line ->
-        val calibrationValueOnlyDigits = firstAndLastDigit(line)
-        val calibrationValueOnlySpelling = firstAndLastDigit(line, spellings)
-
-        var firstDigit = calibrationValueOnlyDigits?.firstDigit?.value
-        calibrationValueOnlySpelling?.let {
-            if (firstDigit == null || calibrationValueOnlyDigits!!.firstDigit.index > it.firstDigit.index) {
-                firstDigit = calibrationValueOnlySpelling.firstDigit.value
-            }
-        }
+    return sumCalibrationValues(input, DigitMatcher(spellings))
+}
 
-        var lastDigit = calibrationValueOnlyDigits?.lastDigit?.value
-        calibrationValueOnlySpelling?.let {
-            if (lastDigit == null || calibrationValueOnlyDigits!!.lastDigit.index < it.lastDigit.index) {
-                lastDigit = calibrationValueOnlySpelling.lastDigit.value
-            }
-        }
-        if (firstDigit == null || lastDigit == null) {
+private fun sumCalibrationValues(input: List<String>, matcher: DigitMatcher): Int {
+    return input.sumOf { line ->
+        val calibrationValue = matcher.calibrationValue(line)
+        if (calibrationValue < 0) {
             throw Exception("No digits found in $line")
         }
-        lastDigit!! + 10 * firstDigit!!
+        calibrationValue
     }
 }
 
-fun firstAndLastDigit(line: String, spellings: Map<String, Int>): CalibrationValue? {
-    var firstDigit: Digit? = null
-    var lastDigit: Digit? = null
+/**
+ * Computes both parts straight from the bytes of a memory-mapped file, without creating a String per line.
+ * The file is split into newline-aligned chunks that are scanned on the fork-join pool, so the heap use
+ * does not depend on the size of the file.
+ */
+fun sumCalibrationValuesMapped(path: Path, pool: ForkJoinPool = ForkJoinPool.commonPool()): CalibrationSums {
+    FileChannel.open(path, StandardOpenOption.READ).use { channel ->
+        val task = CalibrationChunkTask(
+            channel, 0, channel.size(), DigitMatcher(emptyMap()), DigitMatcher(spellings)
+        )
+        return pool.invoke(task)
+    }
+}
 
-    for ((spelling, value) in spellings) {
-        var foundIndex = line.indexOf(spelling)
-        if (foundIndex >= 0 && (firstDigit == null || firstDigit.index > foundIndex)) {
-            firstDigit = Digit(value, foundIndex)
-        }
+private class CalibrationChunkTask(
+    private val channel: FileChannel,
+    private val start: Long,
+    private val end: Long,
+    private val digitsOnly: DigitMatcher,
+    private val withSpellings: DigitMatcher,
+) : RecursiveTask<CalibrationSums>() {
 
-        foundIndex = line.lastIndexOf(spelling)
-        if (foundIndex >= 0 && (lastDigit == null || lastDigit.index < foundIndex)) {
-            lastDigit = Digit(value, foundIndex)
+    override fun compute(): CalibrationSums {
+        if (end - start <= CHUNK_SIZE) {
+            return scan()
         }
+        val mid = nextLineStart(start + (end - start) / 2)
+        if (mid >= end) {
+            return scan()
+        }
+        val left = CalibrationChunkTask(channel, start, mid, digitsOnly, withSpellings)
+        left.fork()
+        val right = CalibrationChunkTask(channel, mid, end, digitsOnly, withSpellings).compute()
+        return left.join() + right
     }
-    if (firstDigit != null) {
-        return CalibrationValue(firstDigit, lastDigit!!)
+
+    private fun nextLineStart(position: Long): Long {
+        val buffer = ByteBuffer.allocate(4096)
+        var offset = position - 1
+        while (offset < end) {
+            buffer.clear()
+            val read = channel.read(buffer, offset)
+            if (read <= 0) break
+            for (i in 0..<read) {
+                if (buffer.get(i) == '\n'.code.toByte()) {
+                    return offset + i + 1
+                }
+            }
+            offset += read
+        }
+        return end
     }
-    return null
-}
 
-fun firstAndLastDigit(line: String): CalibrationValue? {
-    var firstDigit: Digit? = null
-    var lastDigit: Digit? = null
-    line.forEachIndexed { index, c ->
-        if (c.isDigit()) {
-            firstDigit = firstDigit ?: Digit(c.digitToInt(), index)
-            lastDigit = Digit(c.digitToInt(), index)
+    private fun scan(): CalibrationSums {
+        val bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start)
+        val size = bytes.limit()
+        var part1 = 0L
+        var part2 = 0L
+        var lineStart = 0
+        while (lineStart < size) {
+            var lineEnd = lineStart
+            while (lineEnd < size && bytes.get(lineEnd) != '\n'.code.toByte()) {
+                lineEnd++
+            }
+            val next = lineEnd + 1
+            if (lineEnd > lineStart && bytes.get(lineEnd - 1) == '\r'.code.toByte()) {
+                lineEnd--
+            }
+            if (lineEnd > lineStart) {
+                val value1 = digitsOnly.calibrationValue(bytes, lineStart, lineEnd)
+                val value2 = withSpellings.calibrationValue(bytes, lineStart, lineEnd)
+                if (value1 < 0 || value2 < 0) {
+                    throw Exception("No digits found in ${decode(bytes, lineStart, lineEnd)}")
+                }
+                part1 += value1
+                part2 += value2
+            }
+            lineStart = next
         }
+        return CalibrationSums(part1, part2)
     }
-    if (firstDigit != null) {
-        return CalibrationValue(firstDigit!!, lastDigit!!)
+
+    private fun decode(bytes: ByteBuffer, from: Int, to: Int): String {
+        val line = ByteArray(to - from)
+        bytes.get(from, line)
+        return String(line, StandardCharsets.US_ASCII)
+    }
+
+    companion object {
+        const val CHUNK_SIZE = 16L * 1024 * 1024
     }
-    return null
 }
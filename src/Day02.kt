@@ -1,14 +1,14 @@
 fun main() {
     val numberOfCubes = Cubes(12,13,14)
-    val inputs = readInput("input").map { GameInput.fromString(it) }
-    val result = inputs.sumOf { game ->
-        if (game.isPossible(numberOfCubes)) game.id.toLong() else 0L
+    val game = GameAccumulator()
+    var result = 0L
+    var result2 = 0L
+    readInput("input").forEach { line ->
+        game.parse(line)
+        if (game.isPossible(numberOfCubes)) result += game.id
+        result2 += game.power()
     }
     println("Part 1: $result")
-
-    val result2 = inputs.sumOf { game ->
-        game.minPossibleCube().power()
-    }
     println("Part 2: $result2")
 }
 
@@ -16,56 +16,321 @@ data class Cubes(val red: Int, val green: Int, val blue: Int) {
     fun power() = red * green * blue
 }
 
-data class GameInput(val id: Int, val plays: List<Cubes>) {
+data class GameInput(val id: Int, val maxCubes: Cubes) {
 
     fun isPossible(numberOfCubes: Cubes): Boolean {
-        return plays.all { play ->
-            play.red <= numberOfCubes.red &&
-            play.green <= numberOfCubes.green &&
-            play.blue <= numberOfCubes.blue
-         }
+        return maxCubes.red <= numberOfCubes.red &&
+            maxCubes.green <= numberOfCubes.green &&
+            maxCubes.blue <= numberOfCubes.blue
     }
 
-    fun minPossibleCube(): Cubes {
-       return Cubes(
-           plays.maxOfOrNull { it.red } ?: 0,
-           plays.maxOfOrNull { it.green } ?: 0,
-           plays.maxOfOrNull { it.blue } ?: 0
-        )
-    }
+    fun minPossibleCube(): Cubes = maxCubes
 
     companion object {
         fun fromString(input: String): GameInput {
-            val gameId =  extractGameId(input)
-            val plays = extractPlays(input)
-            return GameInput(gameId, plays)
+            return GameAccumulator().parse(input).toGameInput()
+        }
+    }
+}
+
+/**
+ * Game id and maximum number of cubes of each color shown in any play, filled directly from the characters
+ * of a line like "Game 1: 3 blue, 4 red; 1 red, 2 green". The same instance can be reused for every line,
+ * so both parts are answered without allocating per game.
+ */
+class GameAccumulator {
+    var id = 0
+        private set
+    var maxRed = 0
+        private set
+    var maxGreen = 0
+        private set
+    var maxBlue = 0
+        private set
+
+    fun isPossible(numberOfCubes: Cubes): Boolean {
+        return maxRed <= numberOfCubes.red &&
+            maxGreen <= numberOfCubes.green &&
+            maxBlue <= numberOfCubes.blue
+    }
+
+    fun power() = maxRed.toLong() * maxGreen * maxBlue
+
+    fun toGameInput() = GameInput(id, Cubes(maxRed, maxGreen, maxBlue))
+
+    fun parse(input: CharSequence): GameAccumulator {
+        if (!input.startsWith(GAME_PREFIX)) throw Exception("No game id found in $input")
+        var i = GAME_PREFIX.length
+        id = 0
+        while (i < input.length && input[i].isDigit()) {
+            id = id * 10 + (input[i] - '0')
+            i++
+        }
+        if (i == GAME_PREFIX.length || i >= input.length || input[i] != ':') {
+            throw Exception("No game id found in $input")
+        }
+        i++
+
+        maxRed = 0
+        maxGreen = 0
+        maxBlue = 0
+        while (i < input.length) {
+            val c = input[i]
+            if (!c.isDigit()) {
+                i++
+                continue
+            }
+            var count = 0
+            while (i < input.length && input[i].isDigit()) {
+                count = count * 10 + (input[i] - '0')
+                i++
+            }
+            while (i < input.length && input[i] == ' ') {
+                i++
+            }
+            when (if (i < input.length) input[i] else ' ') {
+                'r' -> maxRed = maxOf(maxRed, count)
+                'g' -> maxGreen = maxOf(maxGreen, count)
+                'b' -> maxBlue = maxOf(maxBlue, count)
+                else -> throw Exception("Invalid color after $count in $input")
+            }
+            while (i < input.length && input[i].isLetter()) {
+                i++
+            }
         }
+        return this
+    }
+
+    companion object {
+        private const val GAME_PREFIX = "Game "
+    }
+}
+
+/**
+ * Answers "sum of the ids of the games possible with this bag" for any bag in constant time.
+ *
+ * Every color is compressed to the ranks of its distinct max counts, kept sorted so a rank is a binary
+ * search, and the ids are accumulated in a 3D prefix-sum table over those ranks, so a query is three rank
+ * lookups and one table read. The table has one cell per combination of distinct red, green and blue
+ * counts. When that goes over [MAX_CELLS], a single bag is answered by a k-d tree over the games instead,
+ * and a batch of bags by one sweep over the games and the bags sorted by red count, with the green and blue
+ * ranks of the games seen so far in a 2D Fenwick tree.
+ */
+class BagQueryIndex(games: List<GameInput>) {
+    private val reds = distinctSorted(games.map { it.maxCubes.red })
+    private val greens = distinctSorted(games.map { it.maxCubes.green })
+    private val blues = distinctSorted(games.map { it.maxCubes.blue })
+    private val greenSize = greens.size + 1
+    private val blueSize = blues.size + 1
+    private val prefixSums: LongArray?
+    private val gamesByRed: List<GameInput>
+    private val tree: GameKdTree?
 
-        private fun extractPlays(input: String): List<Cubes> {
-            return input.split(":")[1].split(";").map(::extractCube)
+    init {
+        val cells = (reds.size + 1).toLong() * greenSize * blueSize
+        if (cells > MAX_CELLS) {
+            prefixSums = null
+            gamesByRed = games.sortedBy { it.maxCubes.red }
+            tree = GameKdTree(games)
+        } else {
+            gamesByRed = emptyList()
+            tree = null
+            prefixSums = LongArray(cells.toInt())
+            buildPrefixSums(games, prefixSums)
         }
+    }
 
-        private fun extractCube(playStr: String): Cubes {
-            var r = 0
-            var g = 0
-            var b = 0
-            playStr.trim().split(",").map(String::trim).forEach{
-                if (it.contains("red")) {
-                    r = it.split(" ")[0].toInt()
+    private fun buildPrefixSums(games: List<GameInput>, prefixSums: LongArray) {
+        games.forEach { game ->
+            val cube = game.maxCubes
+            prefixSums[cell(rankOf(reds, cube.red), rankOf(greens, cube.green), rankOf(blues, cube.blue))] +=
+                game.id.toLong()
+        }
+        for (r in 1..reds.size) {
+            for (g in 0..<greenSize) {
+                for (b in 0..<blueSize) {
+                    prefixSums[cell(r, g, b)] += prefixSums[cell(r - 1, g, b)]
                 }
-                else if (it.contains("green")) {
-                    g = it.split(" ")[0].toInt()
+            }
+        }
+        for (r in 0..reds.size) {
+            for (g in 1..<greenSize) {
+                for (b in 0..<blueSize) {
+                    prefixSums[cell(r, g, b)] += prefixSums[cell(r, g - 1, b)]
+                }
+            }
+        }
+        for (r in 0..reds.size) {
+            for (g in 0..<greenSize) {
+                for (b in 1..<blueSize) {
+                    prefixSums[cell(r, g, b)] += prefixSums[cell(r, g, b - 1)]
+                }
+            }
+        }
+    }
+
+    fun sumOfPossibleIds(numberOfCubes: Cubes): Long {
+        if (prefixSums == null) return tree!!.sumOfPossibleIds(numberOfCubes)
+        val r = rankOf(reds, numberOfCubes.red)
+        val g = rankOf(greens, numberOfCubes.green)
+        val b = rankOf(blues, numberOfCubes.blue)
+        if (r == 0 || g == 0 || b == 0) return 0
+        return prefixSums[cell(r, g, b)]
+    }
+
+    fun sumOfPossibleIds(bags: List<Cubes>): LongArray {
+        if (prefixSums != null || greenSize.toLong() * blueSize > MAX_CELLS) {
+            return LongArray(bags.size) { sumOfPossibleIds(bags[it]) }
+        }
+        return sweepSumOfPossibleIds(bags)
+    }
+
+    /**
+     * Answers the bags in order of red count, adding the games with few enough red cubes to a 2D Fenwick tree
+     * over the green and blue ranks as the red count grows. Each game and each bag then costs O(log² n).
+     */
+    private fun sweepSumOfPossibleIds(bags: List<Cubes>): LongArray {
+        val sums = LongArray(bags.size)
+        val fenwick = LongArray(greenSize * blueSize)
+        val order = bags.indices.sortedBy { bags[it].red }
+        var next = 0
+        for (query in order) {
+            val bag = bags[query]
+            while (next < gamesByRed.size && gamesByRed[next].maxCubes.red <= bag.red) {
+                val cube = gamesByRed[next].maxCubes
+                var g = rankOf(greens, cube.green)
+                while (g < greenSize) {
+                    var b = rankOf(blues, cube.blue)
+                    while (b < blueSize) {
+                        fenwick[g * blueSize + b] += gamesByRed[next].id.toLong()
+                        b += b and -b
+                    }
+                    g += g and -g
                 }
-                else if (it.contains("blue")) {
-                    b = it.split(" ")[0].toInt()
+                next++
+            }
+            var sum = 0L
+            var g = rankOf(greens, bag.green)
+            while (g > 0) {
+                var b = rankOf(blues, bag.blue)
+                while (b > 0) {
+                    sum += fenwick[g * blueSize + b]
+                    b -= b and -b
                 }
+                g -= g and -g
+            }
+            sums[query] = sum
+        }
+        return sums
+    }
+
+    private fun cell(r: Int, g: Int, b: Int) = (r * greenSize + g) * blueSize + b
+
+    companion object {
+        const val MAX_CELLS = 1L shl 22
+
+        private fun distinctSorted(counts: List<Int>): IntArray {
+            return counts.toIntArray().apply { sort() }.distinct().toIntArray()
+        }
+
+        /**
+         * Number of values less than or equal to [count] in the sorted array.
+         */
+        private fun rankOf(values: IntArray, count: Int): Int {
+            var low = 0
+            var high = values.size
+            while (low < high) {
+                val mid = (low + high) ushr 1
+                if (values[mid] <= count) low = mid + 1 else high = mid
+            }
+            return low
+        }
+    }
+}
+
+/**
+ * Games in an implicit k-d tree over their red, green and blue counts, splitting on the median of each axis in
+ * turn. Every node keeps the bounding box and the id sum of its subtree, so a query adds whole subtrees that
+ * fit in the bag, skips the ones that cannot, and only descends into the rest: O(n^(2/3)) in the worst case.
+ */
+private class GameKdTree(games: List<GameInput>) {
+    private val size = games.size
+    private val counts = Array(AXES) { IntArray(size) }
+    private val ids = LongArray(size)
+    private val lows = Array(AXES) { IntArray(size) }
+    private val highs = Array(AXES) { IntArray(size) }
+    private val sums = LongArray(size)
+
+    init {
+        val input = Array(AXES) { axis -> IntArray(size) { countOf(games[it].maxCubes, axis) } }
+        val order = IntArray(size) { it }
+        val keys = LongArray(size)
+        build(input, order, keys, 0, size, 0)
+        for (i in 0..<size) {
+            for (axis in 0..<AXES) counts[axis][i] = input[axis][order[i]]
+            ids[i] = games[order[i]].id.toLong()
+        }
+        summarize(0, size)
+    }
+
+    fun sumOfPossibleIds(numberOfCubes: Cubes): Long {
+        return sum(0, size, numberOfCubes.red, numberOfCubes.green, numberOfCubes.blue)
+    }
+
+    /**
+     * Orders `order[from, to)` so that the node median sits in the middle, with its children on either side.
+     */
+    private fun build(input: Array<IntArray>, order: IntArray, keys: LongArray, from: Int, to: Int, axis: Int) {
+        if (to - from <= 1) return
+        for (i in from..<to) {
+            keys[i] = input[axis][order[i]].toLong() * (1L shl 31) + order[i]
+        }
+        keys.sort(from, to)
+        for (i in from..<to) {
+            order[i] = (keys[i] and Int.MAX_VALUE.toLong()).toInt()
+        }
+        val mid = (from + to) ushr 1
+        build(input, order, keys, from, mid, (axis + 1) % AXES)
+        build(input, order, keys, mid + 1, to, (axis + 1) % AXES)
+    }
+
+    private fun summarize(from: Int, to: Int) {
+        if (from >= to) return
+        val mid = (from + to) ushr 1
+        summarize(from, mid)
+        summarize(mid + 1, to)
+        sums[mid] = ids[mid]
+        for (axis in 0..<AXES) {
+            lows[axis][mid] = counts[axis][mid]
+            highs[axis][mid] = counts[axis][mid]
+        }
+        for (child in intArrayOf((from + mid) ushr 1, (mid + 1 + to) ushr 1)) {
+            if (child == mid || child !in from..<to) continue
+            sums[mid] += sums[child]
+            for (axis in 0..<AXES) {
+                lows[axis][mid] = minOf(lows[axis][mid], lows[axis][child])
+                highs[axis][mid] = maxOf(highs[axis][mid], highs[axis][child])
             }
-            return Cubes(r, g, b)
         }
+    }
 
-        private fun extractGameId(input: String): Int {
-            val match = Regex("Game (\\d+):.*").find(input)
-            return match?.groupValues?.get(1)?.toInt() ?: throw Exception("No game id found in $input")
+    private fun sum(from: Int, to: Int, red: Int, green: Int, blue: Int): Long {
+        if (from >= to) return 0
+        val mid = (from + to) ushr 1
+        if (highs[0][mid] <= red && highs[1][mid] <= green && highs[2][mid] <= blue) return sums[mid]
+        if (lows[0][mid] > red || lows[1][mid] > green || lows[2][mid] > blue) return 0
+        var sum = sum(from, mid, red, green, blue) + sum(mid + 1, to, red, green, blue)
+        if (counts[0][mid] <= red && counts[1][mid] <= green && counts[2][mid] <= blue) sum += ids[mid]
+        return sum
+    }
+
+    companion object {
+        private const val AXES = 3
+
+        private fun countOf(cubes: Cubes, axis: Int) = when (axis) {
+            0 -> cubes.red
+            1 -> cubes.green
+            else -> cubes.blue
         }
     }
-}
\ No newline at end of file
+}
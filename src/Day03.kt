@@ -1,20 +1,38 @@
 import java.lang.StringBuilder
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveTask
+import kotlin.io.path.useLines
 
-fun main() {
+fun main(args: Array<String>) {
+    if ("--parallel" in args) {
+        val sums = Schematic(readInput("input")).parallelSums()
+        println("Part 1: ${sums.partNumbers}")
+        println("Part 2: ${sums.gearRatios}")
+        return
+    }
+    if ("--stream" in args) {
+        val sums = inputPath("input").useLines { StreamingSchematic.sums(it) }
+        println("Part 1: ${sums.partNumbers}")
+        println("Part 2: ${sums.gearRatios}")
+        return
+    }
     val schematic = Schematic(readInput("input"))
+    val sums = schematic.sums()
 
-    val part1 = schematic.allPartNumbers()
-        .sumOf {
-            it.number.toLong()
-        }
+    val part1 = sums.partNumbers
     println("Part 1: $part1")
 
-    val part2 = schematic.calcRatio()
+    val part2 = sums.gearRatios
     println("Part 2: $part2")
 }
 
 data class NumberLocation(val row: Int, val col: Int, val length: Int, val number: Int)
 
+data class SchematicSums(val partNumbers: Long, val gearRatios: Long) {
+    operator fun plus(other: SchematicSums) =
+        SchematicSums(partNumbers + other.partNumbers, gearRatios + other.gearRatios)
+}
+
 class Schematic(val grid: List<String>) {
     fun allPartNumbers(): List<NumberLocation> {
         return findNumbers()
@@ -33,54 +51,103 @@ class Schematic(val grid: List<String>) {
             }
     }
 
-    fun calcRatio(): Long {
-        return this.findGears().map<Pair<Int,Int>, Long> { (row, col) ->
-            val adjNumbers = mutableSetOf<Int>()
-            for (i in row - 1..row + 1) {
-                for (j in col - 1..col + 1) {
-                    if (i == row && j == col) continue
-                    if (i < 0 || i >= grid.size) continue
-                    if (j < 0 || j >= grid[i].length) continue
-                    if (grid[i][j].isDigit()) {
-                        adjNumbers.add(assembleNumber(i, j))
-                        if (adjNumbers.size > 2) {
-                            return@map 0
-                        }
-                    }
+    fun calcRatio(): Long = sums().gearRatios
+
+    /**
+     * Sums the part numbers and the gear ratios in one sweep over the symbols.
+     *
+     * Every digit cell is first labeled with the id of the number it belongs to, so the neighbors of a
+     * symbol directly tell which numbers touch it. Numbers are told apart by id, not by value, so two equal
+     * numbers around the same gear still make a ratio.
+     */
+    fun sums(): SchematicSums {
+        val width = grid.maxOfOrNull { it.length } ?: 0
+        val labels = IntArray(grid.size * width) { NO_NUMBER }
+        var values = IntArray(16)
+        var numbersCount = 0
+        grid.forEachIndexed { row, line ->
+            var col = 0
+            while (col < line.length) {
+                if (!line[col].isDigit()) {
+                    col++
+                    continue
                 }
+                if (numbersCount == values.size) values = values.copyOf(values.size * 2)
+                var value = 0
+                while (col < line.length && line[col].isDigit()) {
+                    value = value * 10 + line[col].digitToInt()
+                    labels[row * width + col] = numbersCount
+                    col++
+                }
+                values[numbersCount++] = value
             }
-            if (adjNumbers.size == 2) {
-                return@map adjNumbers.first().toLong() * adjNumbers.last().toLong()
-            }
-            return@map 0L
-        }.sum()
-    }
+        }
 
-    private fun findGears(): List<Pair<Int, Int>> {
-        val gears = mutableListOf<Pair<Int, Int>>()
-        grid.forEachIndexed { idx, line ->
-            for (i in line.indices) {
-                if (line[i] == '*') {
-                    gears.add(Pair(idx, i))
+        val isPart = BooleanArray(numbersCount)
+        var partNumbers = 0L
+        var gearRatios = 0L
+        grid.forEachIndexed { row, line ->
+            for (col in line.indices) {
+                if (line[col].isDigit() || line[col] == '.') continue
+                var adjacent = 0
+                var first = NO_NUMBER
+                var second = NO_NUMBER
+                for (i in maxOf(row - 1, 0)..minOf(row + 1, grid.size - 1)) {
+                    // the cells of a number are contiguous, so a label only repeats right after itself
+                    var previous = NO_NUMBER
+                    for (j in maxOf(col - 1, 0)..minOf(col + 1, width - 1)) {
+                        val label = labels[i * width + j]
+                        if (label == NO_NUMBER || label == previous) {
+                            previous = label
+                            continue
+                        }
+                        previous = label
+                        if (!isPart[label]) {
+                            isPart[label] = true
+                            partNumbers += values[label]
+                        }
+                        adjacent++
+                        if (adjacent == 1) first = label else if (adjacent == 2) second = label
+                    }
+                }
+                if (line[col] == '*' && adjacent == 2) {
+                    gearRatios += values[first].toLong() * values[second].toLong()
                 }
             }
         }
-        return gears
+        return SchematicSums(partNumbers, gearRatios)
     }
 
-    private fun assembleNumber(row: Int, col: Int): Int {
-        val number = StringBuilder()
-        var start = col
-        while (start >= 0 && grid[row][start].isDigit()) {
-            start--
-        }
-        for (i in start+1 ..<grid[row].length) {
-            if (!grid[row][i].isDigit()) {
-                break
+    /**
+     * Same as [sums], splitting the grid into horizontal bands that are processed on the fork-join pool.
+     *
+     * Every band is run through a [StreamingSchematic] together with one halo row above and below it.
+     * The halo rows only mark the numbers of the band as part numbers: the numbers and gears of a row are
+     * counted by the band owning that row, so nothing crossing a band boundary is counted twice.
+     */
+    fun parallelSums(pool: ForkJoinPool = ForkJoinPool.commonPool(), bandRows: Int = BAND_ROWS): SchematicSums {
+        return pool.invoke(BandTask(0, grid.size, bandRows))
+    }
+
+    private inner class BandTask(private val from: Int, private val to: Int, private val bandRows: Int) :
+        RecursiveTask<SchematicSums>() {
+
+        override fun compute(): SchematicSums {
+            if (to - from <= bandRows) {
+                val band = StreamingSchematic()
+                if (from > 0) band.accept(grid[from - 1], owned = false)
+                for (row in from..<to) {
+                    band.accept(grid[row])
+                }
+                if (to < grid.size) band.accept(grid[to], owned = false)
+                return band.finish()
             }
-            number.append(grid[row][i])
+            val mid = (from + to) / 2
+            val top = BandTask(from, mid, bandRows)
+            top.fork()
+            val bottom = BandTask(mid, to, bandRows).compute()
+            return top.join() + bottom
         }
-        return number.toString().toInt()
     }
 
     private fun findNumbers(): List<NumberLocation> {
@@ -106,4 +173,152 @@ class Schematic(val grid: List<String>) {
         }
         return locations
     }
+
+    companion object {
+        private const val NO_NUMBER = -1
+        private const val BAND_ROWS = 256
+    }
+}
+
+/**
+ * Computes the same sums as [Schematic.sums] reading one row at a time.
+ *
+ * Only the previous, current and next rows are kept, each with the labels and values of its numbers.
+ * The symbols of a row are handled once its next row arrives, and the part numbers of a row are added
+ * when it leaves the window, since no symbol that can touch them is left to be seen. Memory is bounded
+ * by the width of the rows, not by their number.
+ */
+class StreamingSchematic {
+    private var prev: SchematicRow? = null
+    private var curr: SchematicRow? = null
+    private var spare: SchematicRow? = null
+    private var partNumbers = 0L
+    private var gearRatios = 0L
+    private var adjacent = 0
+    private var first = 0L
+    private var second = 0L
+
+    /**
+     * Adds the next row. Rows that are not [owned] still mark the numbers around their symbols as part
+     * numbers, but their own numbers and gears are left out of the sums.
+     */
+    fun accept(line: CharSequence, owned: Boolean = true) {
+        val next = (spare ?: SchematicRow()).also { it.fill(line, owned) }
+        spare = null
+        curr?.let { processSymbols(prev, it, next) }
+        prev?.let { leave(it) }
+        prev = curr
+        curr = next
+    }
+
+    fun finish(): SchematicSums {
+        curr?.let { processSymbols(prev, it, null) }
+        prev?.let { leave(it) }
+        curr?.let { leave(it) }
+        prev = null
+        curr = null
+        return SchematicSums(partNumbers, gearRatios)
+    }
+
+    private fun leave(row: SchematicRow) {
+        if (row.owned) partNumbers += row.partNumbersSum()
+        spare = row
+    }
+
+    private fun processSymbols(above: SchematicRow?, row: SchematicRow, below: SchematicRow?) {
+        val line = row.line
+        for (col in line.indices) {
+            if (line[col].isDigit() || line[col] == '.') continue
+            adjacent = 0
+            collectAdjacent(above, col)
+            collectAdjacent(row, col)
+            collectAdjacent(below, col)
+            if (row.owned && line[col] == '*' && adjacent == 2) {
+                gearRatios += first * second
+            }
+        }
+    }
+
+    private fun collectAdjacent(neighbor: SchematicRow?, col: Int) {
+        if (neighbor == null) return
+        // the cells of a number are contiguous, so a label only repeats right after itself
+        var previous = SchematicRow.NO_NUMBER
+        for (j in maxOf(col - 1, 0)..minOf(col + 1, neighbor.line.length - 1)) {
+            val label = neighbor.labels[j]
+            if (label == SchematicRow.NO_NUMBER || label == previous) {
+                previous = label
+                continue
+            }
+            previous = label
+            neighbor.isPart[label] = true
+            adjacent++
+            if (adjacent == 1) first = neighbor.values[label].toLong()
+            else if (adjacent == 2) second = neighbor.values[label].toLong()
+        }
+    }
+
+    companion object {
+        fun sums(lines: Sequence<CharSequence>): SchematicSums {
+            val schematic = StreamingSchematic()
+            lines.forEach(schematic::accept)
+            return schematic.finish()
+        }
+    }
+}
+
+/**
+ * One row of the [StreamingSchematic] window: the label of the number under every cell and a table of
+ * number values. The arrays are reused when the row is refilled.
+ */
+private class SchematicRow {
+    var line: CharSequence = ""
+        private set
+    var owned = true
+        private set
+    var labels = IntArray(0)
+        private set
+    var values = IntArray(16)
+        private set
+    var isPart = BooleanArray(16)
+        private set
+    private var numbersCount = 0
+
+    fun fill(line: CharSequence, owned: Boolean) {
+        this.line = line
+        this.owned = owned
+        if (labels.size < line.length) labels = IntArray(line.length)
+        labels.fill(NO_NUMBER, 0, line.length)
+        numbersCount = 0
+        var col = 0
+        while (col < line.length) {
+            if (!line[col].isDigit()) {
+                col++
+                continue
+            }
+            if (numbersCount == values.size) {
+                values = values.copyOf(values.size * 2)
+                isPart = BooleanArray(values.size)
+            }
+            var value = 0
+            while (col < line.length && line[col].isDigit()) {
+                value = value * 10 + line[col].digitToInt()
+                labels[col] = numbersCount
+                col++
+            }
+            values[numbersCount++] = value
+        }
+        isPart.fill(false, 0, numbersCount)
+    }
+
+    fun partNumbersSum(): Long {
+        var sum = 0L
+        for (i in 0..<numbersCount) {
+            if (isPart[i]) sum += values[i]
+        }
+        return sum
+    }
+
+    companion object {
+        const val NO_NUMBER = -1
+    }
 }
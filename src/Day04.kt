@@ -1,4 +1,6 @@
-data class Card(val id: Int, val win: Set<Long>, val ownedNumbers: Set<Long>) {
+import kotlin.io.path.useLines
+
+class Card(val id: Int, val win: CardNumbers, val ownedNumbers: CardNumbers) {
 
     fun totalPoints(): Long {
         val numberOfIntersections = totalMatches()
@@ -7,41 +9,257 @@ data class Card(val id: Int, val win: Set<Long>, val ownedNumbers: Set<Long>) {
     }
 
     fun totalMatches(): Int {
-        return  win.intersect(ownedNumbers).size
+        return win.countCommon(ownedNumbers)
+    }
+}
+
+/**
+ * The numbers of one side of a card. Small numbers are kept in a fixed-width bitset, so counting the
+ * matches between two of them is a couple of popcounts. Cards with numbers outside the bitset range
+ * fall back to a sorted array.
+ */
+sealed interface CardNumbers {
+    fun countCommon(other: CardNumbers): Int
+
+    fun contains(number: Long): Boolean
+
+    companion object {
+        fun of(numbers: LongArray, size: Int): CardNumbers {
+            for (i in 0..<size) {
+                if (numbers[i] !in 0..<BitsetCardNumbers.BITS) {
+                    return SortedCardNumbers.of(numbers, size)
+                }
+            }
+            return BitsetCardNumbers.of(numbers, size)
+        }
+    }
+}
+
+class BitsetCardNumbers(private val words: LongArray) : CardNumbers {
+
+    override fun countCommon(other: CardNumbers): Int {
+        if (other !is BitsetCardNumbers) return other.countCommon(this)
+        var count = 0
+        for (i in words.indices) {
+            count += java.lang.Long.bitCount(words[i] and other.words[i])
+        }
+        return count
+    }
+
+    override fun contains(number: Long): Boolean {
+        if (number !in 0..<BITS) return false
+        return words[(number ushr 6).toInt()] and (1L shl number.toInt()) != 0L
+    }
+
+    companion object {
+        const val BITS = 128L
+
+        fun of(numbers: LongArray, size: Int): BitsetCardNumbers {
+            val words = LongArray((BITS / 64).toInt())
+            for (i in 0..<size) {
+                words[(numbers[i] ushr 6).toInt()] = words[(numbers[i] ushr 6).toInt()] or (1L shl numbers[i].toInt())
+            }
+            return BitsetCardNumbers(words)
+        }
+    }
+}
+
+class SortedCardNumbers(private val values: LongArray) : CardNumbers {
+
+    override fun countCommon(other: CardNumbers): Int {
+        if (other !is SortedCardNumbers) {
+            return values.count { other.contains(it) }
+        }
+        var count = 0
+        var i = 0
+        var j = 0
+        while (i < values.size && j < other.values.size) {
+            when {
+                values[i] < other.values[j] -> i++
+                values[i] > other.values[j] -> j++
+                else -> {
+                    count++
+                    i++
+                    j++
+                }
+            }
+        }
+        return count
+    }
+
+    override fun contains(number: Long) = values.binarySearch(number) >= 0
+
+    companion object {
+        fun of(numbers: LongArray, size: Int): SortedCardNumbers {
+            val sorted = numbers.copyOf(size)
+            sorted.sort()
+            var distinct = 0
+            for (i in sorted.indices) {
+                if (i == 0 || sorted[i] != sorted[i - 1]) {
+                    sorted[distinct++] = sorted[i]
+                }
+            }
+            return SortedCardNumbers(sorted.copyOf(distinct))
+        }
     }
 }
 
 fun main() {
-    val input = readInput("input").map(::parseCard)
-    val part1 = input.sumOf { card ->
-        card.totalPoints()
+    var part1 = 0L
+    val cascade = ScratchcardCascade()
+    val parser = CardParser()
+    inputPath("input").useLines { lines ->
+        lines.forEach { line ->
+            val matches = parser.totalMatches(line)
+            if (matches > 0) part1 += 1L shl (matches - 1)
+            cascade.accept(matches)
+        }
     }
     println("Part 1: $part1")
+    println("Part 2: ${cascade.totalCards}")
+}
+
+/**
+ * Counts the scratchcards won, taking the cards one at a time in order.
+ *
+ * A card with `c` copies and `m` matches adds `c` copies to each of the next `m` cards, which is kept as a
+ * difference array: `+c` where the range starts and `-c` right after it ends. Only the entries of the next
+ * cards are needed, so they live in a ring buffer sized to the largest match count seen, and each card
+ * costs O(1) no matter how many cards come in.
+ */
+class ScratchcardCascade {
+    private var diffs = LongArray(16)
+    private var position = 0L
+    private var extraCopies = 0L
+    var totalCards = 0L
+        private set
 
-    val cardsCount = Array(input.size+1) { 1 }
-    cardsCount[1] = 1
-    val total = input.sumOf {card ->
-        val totalMatches = card.totalMatches()
-        for (i in 1..totalMatches) {
-            cardsCount[card.id+i] += cardsCount[card.id]
+    /**
+     * Adds the next card and returns how many copies of it there are.
+     */
+    fun accept(matches: Int): Long {
+        if (matches + 2 > diffs.size) grow(matches + 2)
+        extraCopies += diffs[slot(position)]
+        diffs[slot(position)] = 0
+        val copies = 1 + extraCopies
+        totalCards += copies
+        if (matches > 0) {
+            diffs[slot(position + 1)] += copies
+            diffs[slot(position + matches + 1)] -= copies
         }
-        cardsCount[card.id]
+        position++
+        return copies
+    }
+
+    private fun slot(position: Long) = (position and (diffs.size - 1).toLong()).toInt()
+
+    private fun grow(minSize: Int) {
+        var size = diffs.size
+        while (size < minSize) size *= 2
+        val grown = LongArray(size)
+        for (i in 0..<diffs.size) {
+            grown[((position + i) and (size - 1).toLong()).toInt()] = diffs[slot(position + i)]
+        }
+        diffs = grown
     }
-    println("Part 2: $total")
 }
 
-fun parseCard(line: String): Card {
-    val groups = Regex("Card\\s+(\\d+): (.*)\\|(.*)").find(line)?.groups ?: throw RuntimeException("Invalid input on line $line")
-    return Card(
-        id = groups[1]?.value?.toInt() ?: throw RuntimeException("Invalid input"),
+/**
+ * Parses "Card 1: 41 48 | 83 86 17" in a single pass over the characters.
+ */
+fun parseCard(line: String): Card = CardParser().parse(line)
 
-        win = groups[2]?.value?.trim()?.splitToSequence(Regex("\\s+"))?.map {
-            it.trim().toLong()
-        }?.toSet() ?: throw RuntimeException("Invalid winning set"),
+/**
+ * Parser of card lines that reads the numbers into buffers reused from one line to the next. [totalMatches]
+ * also counts the matches in reused bitsets, so scanning a whole file allocates nothing per card.
+ */
+class CardParser {
+    private var winning = LongArray(16)
+    private var winningSize = 0
+    private var owned = LongArray(32)
+    private var ownedSize = 0
+    private val winningWords = LongArray((BitsetCardNumbers.BITS / 64).toInt())
+    private val ownedWords = LongArray((BitsetCardNumbers.BITS / 64).toInt())
 
-        ownedNumbers = groups[3]?.value?.trim()?.split(Regex("\\s+"))?.map {
-            it.trim().toLong()
-        }?.toSet() ?: throw RuntimeException("Invalid owned numbers")
-    )
-}
+    fun parse(line: String): Card {
+        val id = scan(line)
+        return Card(
+            id = id,
+            win = CardNumbers.of(winning, winningSize),
+            ownedNumbers = CardNumbers.of(owned, ownedSize)
+        )
+    }
 
+    /**
+     * Same as `parse(line).totalMatches()`, without building the card.
+     */
+    fun totalMatches(line: String): Int {
+        scan(line)
+        if (!fill(winningWords, winning, winningSize) || !fill(ownedWords, owned, ownedSize)) {
+            return CardNumbers.of(winning, winningSize).countCommon(CardNumbers.of(owned, ownedSize))
+        }
+        var count = 0
+        for (i in winningWords.indices) {
+            count += java.lang.Long.bitCount(winningWords[i] and ownedWords[i])
+        }
+        return count
+    }
+
+    private fun fill(words: LongArray, numbers: LongArray, size: Int): Boolean {
+        words.fill(0)
+        for (i in 0..<size) {
+            if (numbers[i] !in 0..<BitsetCardNumbers.BITS) return false
+            words[(numbers[i] ushr 6).toInt()] = words[(numbers[i] ushr 6).toInt()] or (1L shl numbers[i].toInt())
+        }
+        return true
+    }
+
+    /**
+     * Reads the winning and owned numbers of the line into the buffers and returns the card id.
+     */
+    private fun scan(line: String): Int {
+        if (!line.startsWith("Card")) throw RuntimeException("Invalid input on line $line")
+        var i = "Card".length
+        while (i < line.length && line[i] == ' ') i++
+        var id = 0
+        val idStart = i
+        while (i < line.length && line[i].isDigit()) {
+            id = id * 10 + (line[i] - '0')
+            i++
+        }
+        if (i == idStart || i >= line.length || line[i] != ':') throw RuntimeException("Invalid input on line $line")
+
+        var inWinning = true
+        winningSize = 0
+        ownedSize = 0
+        i++
+        while (i < line.length) {
+            val c = line[i]
+            when {
+                c == '|' -> {
+                    if (!inWinning) throw RuntimeException("Invalid input on line $line")
+                    inWinning = false
+                    i++
+                }
+                c.isDigit() -> {
+                    var number = 0L
+                    while (i < line.length && line[i].isDigit()) {
+                        number = number * 10 + (line[i] - '0')
+                        i++
+                    }
+                    if (inWinning) {
+                        if (winningSize == winning.size) winning = winning.copyOf(winningSize * 2)
+                        winning[winningSize++] = number
+                    } else {
+                        if (ownedSize == owned.size) owned = owned.copyOf(ownedSize * 2)
+                        owned[ownedSize++] = number
+                    }
+                }
+                c.isWhitespace() -> i++
+                else -> throw RuntimeException("Invalid input on line $line")
+            }
+        }
+        if (inWinning) throw RuntimeException("Invalid winning set")
+        return id
+    }
+}
@@ -1,48 +1,423 @@
 import java.util.*
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveTask
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.collections.ArrayList
 import kotlin.system.measureTimeMillis
 import kotlin.time.measureTime
 
 data class Tree(val maps: List<TreeSet<IntervalMap>>) {
+    private val levels = maps.map(LevelMap::of)
+    private val inverseLevels by lazy { maps.map(LevelMap::inverseOf) }
+
+    /**
+     * For every level, the most any value can still decrease through it and the levels after it.
+     */
+    private val lowestShiftFrom = LongArray(levels.size + 1).also { shifts ->
+        for (level in levels.indices.reversed()) {
+            val map = levels[level]
+            var lowestShift = 0L
+            for (k in 0..<map.size) {
+                lowestShift = minOf(lowestShift, map.dests[k] - map.sources[k])
+            }
+            shifts[level] = shifts[level + 1] + lowestShift
+        }
+    }
+
     fun findLowestLocation(seeds: List<Interval>): Long {
-        return seeds.minOf { seed -> findLowestLocation(seed, 0) }
+        val worklist = LongArrayBuilder()
+        return seeds.minOf { seed -> findLowestLocation(seed.start, seed.length, 0, worklist) }
+    }
+
+    /**
+     * Lowest location of a batch of point seeds.
+     *
+     * The seeds are sorted once and then mapped a level at a time by merging them against the sorted
+     * ranges of the level in a linear sweep. Values shifted by the same range keep their order, so the
+     * array only needs sorting again when a level actually reorders it, and then it is made of sorted
+     * runs that the sort merges.
+     */
+    fun findLowestLocation(seeds: LongArray): Long {
+        if (seeds.isEmpty()) return Long.MAX_VALUE
+        val values = seeds.copyOf()
+        values.sort()
+        levels.forEachIndexed { level, map ->
+            var k = 0
+            var sorted = true
+            for (i in values.indices) {
+                val value = values[i]
+                while (k < map.size && map.sourceEnd(k) <= value) k++
+                if (k < map.size && value >= map.sources[k]) {
+                    values[i] = value + (map.dests[k] - map.sources[k])
+                }
+                if (i > 0 && values[i] < values[i - 1]) sorted = false
+            }
+            if (!sorted && level < levels.size - 1) values.sort()
+        }
+        return values.min()
     }
 
-    private fun findLowestLocation(curr: Interval, level: Int): Long {
-        if (curr.length <= 0) return Long.MAX_VALUE
-        if (level == maps.size) return curr.start
+    /**
+     * Splits the interval level by level until every piece reaches the last level. The pieces waiting to
+     * be handled are kept in a worklist of (start, length, level) triples instead of the call stack, so
+     * heavily fragmented intervals neither allocate per split nor overflow the stack.
+     */
+    private fun findLowestLocation(start: Long, length: Long, level: Int, worklist: LongArrayBuilder): Long {
+        var lowest = Long.MAX_VALUE
+        worklist.clear()
+        worklist.push(start, length, level.toLong())
+        while (worklist.size > 0) {
+            val currLevel = worklist.removeLast().toInt()
+            val currLength = worklist.removeLast()
+            val currStart = worklist.removeLast()
+            if (currLength <= 0) continue
+            if (currLevel == levels.size) {
+                lowest = minOf(lowest, currStart)
+                continue
+            }
 
-        val currLevelMap = maps[level]
-        val currAsMap = IntervalMap(level, curr.start, curr.start, curr.length)
-        val prev = currLevelMap.floor(currAsMap)
-        val next = currLevelMap.ceiling(currAsMap)
+            val map = levels[currLevel]
+            val currEnd = currStart + currLength
+            val prev = map.floorIndex(currStart)
+            val next = prev + 1
+            if (prev >= 0 && currStart < map.sourceEnd(prev)) {
+                val newEnd = minOf(map.sourceEnd(prev), currEnd)
+                worklist.push(map.dests[prev] + (currStart - map.sources[prev]), newEnd - currStart, currLevel + 1L)
+                worklist.push(newEnd, currEnd - newEnd, currLevel.toLong())
+            } else if (next < map.size && currEnd > map.sources[next]) {
+                // the part before the next range is not mapped, so it goes to the next level unchanged
+                worklist.push(currStart, map.sources[next] - currStart, currLevel + 1L)
+                worklist.push(map.sources[next], currEnd - map.sources[next], currLevel.toLong())
+            } else {
+                worklist.push(currStart, currLength, currLevel + 1L)
+            }
+        }
+        return lowest
+    }
 
-        val (overlap, left, right) = if (prev != null && curr.start < prev.sourceEnd) {
-            val newEnd = minOf(prev.sourceEnd, curr.end)
-            Triple(
-                Interval(start = prev.dest + (curr.start-prev.source), length = newEnd - curr.start),
-                null,
-                Interval(start = newEnd, length = curr.end - newEnd),
-            )
-        } else if (next != null && curr.end > next.source) {
-            val newEnd = minOf(next.sourceEnd, curr.end)
-            Triple(
-                Interval(start = next.dest, length = newEnd - next.source),
-                Interval(start = curr.start, length = next.source - curr.start),
-                Interval(start = next.sourceEnd, length = curr.end - next.sourceEnd)
+    /**
+     * Same as [findLowestLocation], with every seed interval, and every large piece split from it, handled
+     * as a task on the fork-join pool. The lowest location found so far is shared by all the tasks, and
+     * pieces that cannot get below it even with the largest decrease left are dropped.
+     */
+    fun parallelFindLowestLocation(seeds: List<Interval>, pool: ForkJoinPool = ForkJoinPool.commonPool()): Long {
+        val best = AtomicLong(Long.MAX_VALUE)
+        return pool.invoke(object : RecursiveTask<Long>() {
+            override fun compute(): Long {
+                val tasks = seeds.map { LowestLocationTask(it.start, it.length, 0, best) }
+                invokeAll(tasks)
+                return tasks.minOfOrNull { it.join() } ?: Long.MAX_VALUE
+            }
+        })
+    }
+
+    private inner class LowestLocationTask(
+        private val start: Long,
+        private val length: Long,
+        private val level: Int,
+        private val best: AtomicLong,
+    ) : RecursiveTask<Long>() {
+        private val worklist = LongArrayBuilder()
+        private val forked = mutableListOf<LowestLocationTask>()
+
+        override fun compute(): Long {
+            var lowest = Long.MAX_VALUE
+            push(start, length, level)
+            while (worklist.size > 0) {
+                val currLevel = worklist.removeLast().toInt()
+                val currLength = worklist.removeLast()
+                val currStart = worklist.removeLast()
+                if (currLength <= 0 || currStart + lowestShiftFrom[currLevel] >= best.get()) continue
+                if (currLevel == levels.size) {
+                    lowest = minOf(lowest, currStart)
+                    best.accumulateAndGet(currStart) { a, b -> minOf(a, b) }
+                    continue
+                }
+
+                val map = levels[currLevel]
+                val currEnd = currStart + currLength
+                val prev = map.floorIndex(currStart)
+                val next = prev + 1
+                if (prev >= 0 && currStart < map.sourceEnd(prev)) {
+                    val newEnd = minOf(map.sourceEnd(prev), currEnd)
+                    push(map.dests[prev] + (currStart - map.sources[prev]), newEnd - currStart, currLevel + 1)
+                    push(newEnd, currEnd - newEnd, currLevel)
+                } else if (next < map.size && currEnd > map.sources[next]) {
+                    push(currStart, map.sources[next] - currStart, currLevel + 1)
+                    push(map.sources[next], currEnd - map.sources[next], currLevel)
+                } else {
+                    push(currStart, currLength, currLevel + 1)
+                }
+            }
+            return forked.fold(lowest) { acc, task -> minOf(acc, task.join()) }
+        }
+
+        private fun push(start: Long, length: Long, level: Int) {
+            if (length >= FORK_LENGTH && worklist.size > 0) {
+                forked.add(LowestLocationTask(start, length, level, best).also { it.fork() })
+            } else {
+                worklist.push(start, length, level.toLong())
+            }
+        }
+    }
+
+    /**
+     * Same as [findLowestLocation], searching from the locations back to the seeds.
+     *
+     * Pieces of location space are taken in ascending order of location and mapped one level back: the
+     * dest ranges of the level give the values mapped into the piece, and the gaps between its source
+     * ranges give the values that go through unchanged. Every piece remembers how far it was shifted, so
+     * its location is known at any level. The first piece at the seed level that overlaps a seed holds the
+     * answer, so when it is low the search stops after looking at a small part of the almanac.
+     */
+    fun findLowestLocationReverse(seeds: List<Interval>): Long {
+        val pieces = PriorityQueue<ReversePiece>(compareBy { it.location })
+        pieces.add(ReversePiece(levels.size, ComposedMap.DOMAIN_START, ComposedMap.DOMAIN_END, 0))
+        while (pieces.isNotEmpty()) {
+            val piece = pieces.poll()
+            if (piece.level < 0) return piece.location
+            if (piece.level == 0) {
+                val seed = seeds.filter { it.length > 0 && it.start < piece.end && it.end > piece.start }
+                    .minOfOrNull { maxOf(it.start, piece.start) }
+                if (seed != null) pieces.add(ReversePiece(-1, seed, seed + 1, piece.shift))
+                continue
+            }
+
+            val level = piece.level - 1
+            val inverse = inverseLevels[level]
+            var k = inverse.firstEndingAfter(piece.start)
+            while (k < inverse.size && inverse.sources[k] < piece.end) {
+                val start = maxOf(piece.start, inverse.sources[k])
+                val end = minOf(piece.end, inverse.sourceEnd(k))
+                if (start < end) {
+                    val shift = inverse.sources[k] - inverse.dests[k]
+                    pieces.add(ReversePiece(level, start - shift, end - shift, piece.shift + shift))
+                }
+                k++
+            }
+
+            val map = levels[level]
+            var start = piece.start
+            k = map.floorIndex(start)
+            if (k >= 0 && map.sourceEnd(k) > start) start = map.sourceEnd(k)
+            k++
+            while (start < piece.end) {
+                val end = if (k < map.size) minOf(map.sources[k], piece.end) else piece.end
+                if (start < end) pieces.add(ReversePiece(level, start, end, piece.shift))
+                if (k >= map.size) break
+                start = maxOf(start, map.sourceEnd(k))
+                k++
+            }
+        }
+        return Long.MAX_VALUE
+    }
+
+    /**
+     * Values in `[start, end)` at the input of [level], that end up shifted by [shift] at the location level.
+     */
+    private data class ReversePiece(val level: Int, val start: Long, val end: Long, val shift: Long) {
+        val location: Long get() = start + shift
+    }
+
+    /**
+     * Composes all the levels into a single seed-to-location function.
+     *
+     * Each segment of the function composed so far is mapped through the next level and split wherever
+     * its image crosses a breakpoint of that level, adding the offsets of both.
+     */
+    fun compose(): ComposedMap {
+        var starts = LongArrayBuilder().apply { add(ComposedMap.DOMAIN_START) }
+        var offsets = LongArrayBuilder().apply { add(0) }
+        for (level in levels) {
+            val (levelStarts, levelOffsets) = piecewise(level)
+            val nextStarts = LongArrayBuilder()
+            val nextOffsets = LongArrayBuilder()
+            for (k in 0..<starts.size) {
+                val offset = offsets[k]
+                val imageStart = starts[k] + offset
+                val imageEnd = (if (k + 1 < starts.size) starts[k + 1] else ComposedMap.DOMAIN_END) + offset
+                var j = floorIndex(levelStarts, imageStart)
+                while (j < levelStarts.size && levelStarts[j] < imageEnd) {
+                    val segmentStart = maxOf(imageStart, levelStarts[j]) - offset
+                    val segmentOffset = offset + levelOffsets[j]
+                    if (nextOffsets.size == 0 || nextOffsets.last() != segmentOffset) {
+                        nextStarts.add(segmentStart)
+                        nextOffsets.add(segmentOffset)
+                    }
+                    j++
+                }
+            }
+            starts = nextStarts
+            offsets = nextOffsets
+        }
+        return ComposedMap(starts.toLongArray(), offsets.toLongArray())
+    }
+
+    /**
+     * Breakpoints and offsets of a single level, with the gaps between its ranges mapped to themselves.
+     */
+    private fun piecewise(level: LevelMap): Pair<LongArray, LongArray> {
+        val starts = LongArrayBuilder()
+        val offsets = LongArrayBuilder()
+        val add = { start: Long, offset: Long ->
+            if (starts.size > 0 && starts.last() == start) {
+                offsets[offsets.size - 1] = offset
+            } else {
+                starts.add(start)
+                offsets.add(offset)
+            }
+        }
+        add(ComposedMap.DOMAIN_START, 0)
+        for (k in 0..<level.size) {
+            add(level.sources[k], level.dests[k] - level.sources[k])
+            add(level.sourceEnd(k), 0)
+        }
+        return Pair(starts.toLongArray(), offsets.toLongArray())
+    }
+
+    companion object {
+        private const val FORK_LENGTH = 1L shl 16
+    }
+}
+
+/**
+ * The ranges of one level as sorted primitive columns, searched with binary search.
+ */
+class LevelMap(val sources: LongArray, val dests: LongArray, val lengths: LongArray) {
+    val size: Int get() = sources.size
+
+    /**
+     * Largest range end among the ranges up to each index, for levels whose ranges overlap.
+     */
+    private val maxSourceEnd = LongArray(sources.size).also { ends ->
+        for (k in sources.indices) {
+            ends[k] = maxOf(if (k > 0) ends[k - 1] else Long.MIN_VALUE, sourceEnd(k))
+        }
+    }
+
+    fun sourceEnd(k: Int) = sources[k] + lengths[k]
+
+    /**
+     * Index of the last range starting at or before [value], or -1 if there is none.
+     */
+    fun floorIndex(value: Long): Int {
+        val idx = sources.binarySearch(value)
+        return if (idx >= 0) idx else -idx - 2
+    }
+
+    /**
+     * Index of the first range such that it, or one of the ranges before it, ends after [value].
+     * Every range overlapping a value at or after [value] is at this index or later.
+     */
+    fun firstEndingAfter(value: Long): Int {
+        var low = 0
+        var high = size
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (maxSourceEnd[mid] > value) high = mid else low = mid + 1
+        }
+        return low
+    }
+
+    companion object {
+        fun of(level: TreeSet<IntervalMap>): LevelMap {
+            return LevelMap(
+                sources = level.map { it.source }.toLongArray(),
+                dests = level.map { it.dest }.toLongArray(),
+                lengths = level.map { it.length }.toLongArray(),
             )
-        } else {
-            Triple(
-                Interval(start = curr.start, length = curr.length), null, null
+        }
+
+        /**
+         * The level read backwards, from its dest ranges to its source ranges, sorted by dest.
+         * Unlike the source ranges, the dest ranges of a level may overlap.
+         */
+        fun inverseOf(level: TreeSet<IntervalMap>): LevelMap {
+            val byDest = level.sortedWith(compareBy({ it.dest }, { it.destEnd }))
+            return LevelMap(
+                sources = byDest.map { it.dest }.toLongArray(),
+                dests = byDest.map { it.source }.toLongArray(),
+                lengths = byDest.map { it.destEnd - it.dest }.toLongArray(),
             )
         }
+    }
+}
+
+/**
+ * Piecewise-linear function: values in `[starts[k], starts[k+1])` are shifted by `offsets[k]`.
+ */
+class ComposedMap(private val starts: LongArray, private val offsets: LongArray) {
+    fun locationOf(seed: Long): Long {
+        return seed + offsets[floorIndex(starts, seed)]
+    }
+
+    /**
+     * The lowest location of an interval is at the start of one of the segments it overlaps.
+     */
+    fun lowestLocation(seed: Interval): Long {
+        if (seed.length <= 0) return Long.MAX_VALUE
+        var k = floorIndex(starts, seed.start)
+        var lowest = Long.MAX_VALUE
+        while (k < starts.size && starts[k] < seed.end) {
+            lowest = minOf(lowest, maxOf(seed.start, starts[k]) + offsets[k])
+            k++
+        }
+        return lowest
+    }
+
+    fun findLowestLocation(seeds: List<Interval>): Long {
+        return seeds.minOf { lowestLocation(it) }
+    }
+
+    companion object {
+        // Kept well inside the range of Long, so adding offsets never overflows
+        const val DOMAIN_START = Long.MIN_VALUE / 4
+        const val DOMAIN_END = Long.MAX_VALUE / 4
+    }
+}
+
+/**
+ * Index of the last element less than or equal to [value] in a sorted array starting with a lower value.
+ */
+fun floorIndex(sorted: LongArray, value: Long): Int {
+    val idx = sorted.binarySearch(value)
+    return if (idx >= 0) idx else -idx - 2
+}
+
+/**
+ * Growable array of primitive longs.
+ */
+class LongArrayBuilder(initialCapacity: Int = 16) {
+    private var values = LongArray(initialCapacity)
+    var size = 0
+        private set
+
+    fun add(value: Long) {
+        if (size == values.size) values = values.copyOf(maxOf(16, size * 2))
+        values[size++] = value
+    }
 
-        return minOf(
-            findLowestLocation(overlap, level+1),
-            if (left != null) findLowestLocation(left, level) else Long.MAX_VALUE,
-            if (right != null) findLowestLocation(right, level) else Long.MAX_VALUE
-        )
+    operator fun get(index: Int) = values[index]
+
+    operator fun set(index: Int, value: Long) {
+        values[index] = value
+    }
+
+    fun push(a: Long, b: Long, c: Long) {
+        add(a)
+        add(b)
+        add(c)
+    }
+
+    fun removeLast() = values[--size]
+
+    fun last() = values[size - 1]
+
+    fun clear() {
+        size = 0
     }
+
+    fun toLongArray() = values.copyOf(size)
 }
 
 data class Interval(val start: Long, val length: Long) {
@@ -71,17 +446,23 @@ data class IntervalMap(
     }
 }
 
-fun main() {
+fun main(args: Array<String>) {
     val execTime = measureTime {
         val input = readInput("input")
         val linesIter = input.iterator()
         val seedsLine = readSeedLine(linesIter.next())
 
-        val graph = readGraph(linesIter)
-        val part1 = graph.findLowestLocation(seedsAsOneElementInterval(seedsLine))
+        val tree = readGraph(linesIter)
+        val part1 = tree.findLowestLocation(seedsLine.toLongArray())
         println(part1)
 
-        val part2 = graph.findLowestLocation(seedsAsIntervals(seedsLine))
+        val part2 = if ("--parallel" in args) {
+            tree.parallelFindLowestLocation(seedsAsIntervals(seedsLine))
+        } else if ("--reverse" in args) {
+            tree.findLowestLocationReverse(seedsAsIntervals(seedsLine))
+        } else {
+            tree.compose().findLowestLocation(seedsAsIntervals(seedsLine))
+        }
         println(part2)
     }
     println(execTime)
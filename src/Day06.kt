@@ -1,18 +1,72 @@
-import kotlin.math.ceil
-import kotlin.math.floor
+import java.math.BigInteger
+import java.util.stream.IntStream
 import kotlin.math.sqrt
 
 data class Race(val time:Long, val distance:Long) {
-    fun combinationsToWin(): Long {
-        val a = -1
-        val b = time
-        val c = -distance
-        val root1 = (-b + sqrt(b * b - 4.0 * a * c)) / (2.0 * a)
-        val root2 = (-b - sqrt(b * b - 4.0 * a * c)) / (2.0 * a)
-
-        val start = maxOf(0.0, root1 + 0.01)
-        val end = maxOf(0.0, root2 - 0.01)
-        return (floor(end) - ceil(start)).toLong() + 1
+    fun combinationsToWin(): Long = combinationsToWin(time, distance)
+
+    companion object {
+        /**
+         * Counts the holding times `t` in `0..time` with `t * (time - t) > distance`.
+         *
+         * The winning times are the integers strictly between the roots of `t^2 - time*t + distance`, which
+         * is symmetric around `time / 2`. The first one is found from the integer square root of the
+         * discriminant and then adjusted with exact 128-bit products, so there is no rounding at any size.
+         */
+        fun combinationsToWin(time: Long, distance: Long): Long {
+            if (time < 0) return 0
+            if (distance < 0) return time + 1
+            val root = sqrtDiscriminant(time, distance)
+            if (root < 0) return 0
+
+            var first = maxOf(0L, (time - root) / 2)
+            while (first <= time / 2 && !beats(first, time, distance)) first++
+            while (first > 0 && beats(first - 1, time, distance)) first--
+            val last = time - first
+            return if (last >= first) last - first + 1 else 0
+        }
+
+        /**
+         * Same as [combinationsToWin], for many races spread across the available cores.
+         */
+        fun combinationsToWin(times: LongArray, distances: LongArray): LongArray {
+            require(times.size == distances.size) { "Got ${times.size} times and ${distances.size} distances" }
+            val combinations = LongArray(times.size)
+            IntStream.range(0, times.size).parallel().forEach {
+                combinations[it] = combinationsToWin(times[it], distances[it])
+            }
+            return combinations
+        }
+
+        /**
+         * Whether `holding * (time - holding)` is greater than the distance, computed on 128 bits.
+         */
+        private fun beats(holding: Long, time: Long, distance: Long): Boolean {
+            val high = Math.multiplyHigh(holding, time - holding)
+            val low = holding * (time - holding)
+            return high > 0 || (high == 0L && java.lang.Long.compareUnsigned(low, distance) > 0)
+        }
+
+        /**
+         * Floor of the square root of `time^2 - 4 * distance`, or -1 if it is negative. Only goes through
+         * BigInteger when the discriminant does not fit in a Long.
+         */
+        private fun sqrtDiscriminant(time: Long, distance: Long): Long {
+            if (time <= MAX_EXACT_TIME && distance <= MAX_EXACT_DISTANCE) {
+                val discriminant = time * time - 4 * distance
+                if (discriminant < 0) return -1
+                var root = sqrt(discriminant.toDouble()).toLong()
+                while (root * root > discriminant) root--
+                while ((root + 1) * (root + 1) <= discriminant) root++
+                return root
+            }
+            val discriminant = BigInteger.valueOf(time).pow(2) - BigInteger.valueOf(distance).shiftLeft(2)
+            if (discriminant.signum() < 0) return -1
+            return discriminant.sqrt().toLong()
+        }
+
+        private const val MAX_EXACT_TIME = 2_000_000_000L
+        private const val MAX_EXACT_DISTANCE = 1L shl 60
     }
 }
 
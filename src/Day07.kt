@@ -1,15 +1,18 @@
 import org.junit.jupiter.api.Assertions.assertEquals
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.PriorityQueue
+import kotlin.io.path.deleteIfExists
+import kotlin.io.path.useLines
 
 data class CamelCard(val value: Char, val withJoker: Boolean = false) : Comparable<CamelCard> {
     val strength: Int
-        get() = when (value) {
-            'A' -> 14
-            'K' -> 13
-            'Q' -> 12
-            'J' -> if (withJoker) 1 else 11
-            'T' -> 10
-            else -> value.toString().toInt()
-        }
+        get() = PackedHands.cardStrength(value, withJoker)
 
     override fun compareTo(other: CamelCard): Int {
         return this.strength.compareTo(other.strength)
@@ -23,6 +26,10 @@ data class CamelCard(val value: Char, val withJoker: Boolean = false) : Comparab
 data class Hand(val cards: List<CamelCard>, val bid: Long) : Comparable<Hand> {
     fun totalWinnings(rank: Int) = bid * rank
 
+    fun packedKey(index: Int) = PackedHands.pack(
+        cards.joinToString("") { it.value.toString() }, cards.first().withJoker, index.toLong()
+    )
+
     fun calcStrength(): Long {
         val cardsCount = cardsCount()
         val jokersCount = cards.count { cards.first().withJoker && it.value == 'J' }
@@ -93,22 +100,518 @@ data class Hand(val cards: List<CamelCard>, val bid: Long) : Comparable<Hand> {
     }
 }
 
-fun main() {
+fun main(args: Array<String>) {
+    if ("--external" in args) {
+        println("Part 1: ${calcTotalWinningsExternal(inputPath("input"), withJoker = false)}")
+        println("Part 2: ${calcTotalWinningsExternal(inputPath("input"), withJoker = true)}")
+        return
+    }
     val lines = readInput("input")
-    val hands = readHands(lines, withJoker = false)
-    val part1 = calcTotalWinnings(hands)
+    val part1 = calcTotalWinnings(lines, withJoker = false)
     println("Part 1: $part1")
 
-    val hands2 = readHands(lines, withJoker = true)
-    val part2 = calcTotalWinnings(hands2)
+    val part2 = calcTotalWinnings(lines, withJoker = true)
     println("Part 2: $part2")
 
     runTests7()
 }
 
-private fun calcTotalWinnings(hands: List<Hand>) = hands.sorted().mapIndexed { idx, hand ->
-    hand.totalWinnings(idx + 1)
-}.sum()
+fun calcTotalWinnings(hands: List<Hand>): Long {
+    val keys = LongArray(hands.size) { hands[it].packedKey(it) }
+    keys.sortPacked()
+    var total = 0L
+    keys.forEachIndexed { idx, key ->
+        total += hands[PackedHands.indexOf(key).toInt()].totalWinnings(idx + 1)
+    }
+    return total
+}
+
+/**
+ * Total winnings straight from the input lines, without building a [Hand] per line.
+ */
+fun calcTotalWinnings(lines: List<String>, withJoker: Boolean): Long {
+    val bids = LongArray(lines.size)
+    val keys = LongArray(lines.size) { idx ->
+        val line = lines[idx]
+        val space = line.indexOf(' ')
+        bids[idx] = line.substring(space + 1).trim().toLong()
+        PackedHands.pack(line.subSequence(0, space), withJoker, idx.toLong())
+    }
+    keys.sortPacked()
+    var total = 0L
+    keys.forEachIndexed { idx, key ->
+        total += bids[PackedHands.indexOf(key).toInt()] * (idx + 1)
+    }
+    return total
+}
+
+/**
+ * Total winnings of a file of hands that may not fit in memory.
+ *
+ * Hands are packed into (key, bid) records and read in runs of [runSize] records, each sorted in memory and
+ * spilled to a temporary file. The runs are then merged k-way, adding `bid * rank` as records come out of
+ * the merge, so the fully sorted list is never materialized. At most [fanIn] runs are open at once: when there
+ * are more, they are first merged in groups of [fanIn] into longer runs, as many passes as needed.
+ */
+fun calcTotalWinningsExternal(
+    input: Path,
+    withJoker: Boolean,
+    runSize: Int = EXTERNAL_RUN_SIZE,
+    fanIn: Int = EXTERNAL_FAN_IN,
+): Long {
+    require(fanIn >= 2) { "Cannot merge fewer than 2 runs at a time: $fanIn" }
+    val runs = mutableListOf<Path>()
+    try {
+        input.useLines { lines ->
+            val keys = LongArray(runSize)
+            val bids = LongArray(runSize)
+            var count = 0
+            var index = 0L
+            lines.filter { it.isNotBlank() }.forEach { line ->
+                val space = line.indexOf(' ')
+                bids[count] = line.substring(space + 1).trim().toLong()
+                keys[count] = PackedHands.pack(line.subSequence(0, space), withJoker, index++)
+                count++
+                if (count == runSize) {
+                    runs.add(spillRun(keys, bids, count, index - count))
+                    count = 0
+                }
+            }
+            if (count > 0) runs.add(spillRun(keys, bids, count, index - count))
+        }
+        return mergeRuns(runs, fanIn)
+    } finally {
+        runs.forEach { it.deleteIfExists() }
+    }
+}
+
+/**
+ * Sorts the first [count] records by key and writes them to a temporary file. The hand indexes in the keys
+ * start at [firstIndex], which leads each key back to its bid.
+ */
+private fun spillRun(keys: LongArray, bids: LongArray, count: Int, firstIndex: Long): Path {
+    val sorted = keys.copyOf(count)
+    sorted.sortPacked()
+    val run = Files.createTempFile("day07-run", ".bin")
+    DataOutputStream(BufferedOutputStream(Files.newOutputStream(run))).use { out ->
+        sorted.forEach { key ->
+            out.writeLong(key)
+            out.writeLong(bids[(PackedHands.indexOf(key) - firstIndex).toInt()])
+        }
+    }
+    return run
+}
+
+private class RunReader(run: Path) : AutoCloseable {
+    private val input = DataInputStream(BufferedInputStream(Files.newInputStream(run)))
+    var key = 0L
+        private set
+    var bid = 0L
+        private set
+
+    fun advance(): Boolean {
+        try {
+            key = input.readLong()
+        } catch (e: EOFException) {
+            return false
+        }
+        bid = input.readLong()
+        return true
+    }
+
+    override fun close() = input.close()
+}
+
+/**
+ * Merges the runs in groups of [fanIn] until at most [fanIn] are left, then merges those into the total.
+ * Intermediate runs are added to [runs], so the caller deletes them along with the others.
+ */
+private fun mergeRuns(runs: MutableList<Path>, fanIn: Int): Long {
+    var pending = runs.toList()
+    while (pending.size > fanIn) {
+        pending = pending.chunked(fanIn).map { group ->
+            if (group.size == 1) return@map group[0]
+            val merged = Files.createTempFile("day07-run", ".bin")
+            runs.add(merged)
+            DataOutputStream(BufferedOutputStream(Files.newOutputStream(merged))).use { out ->
+                merge(group) { key, bid ->
+                    out.writeLong(key)
+                    out.writeLong(bid)
+                }
+            }
+            group.forEach { it.deleteIfExists() }
+            merged
+        }
+    }
+    var rank = 0L
+    var total = 0L
+    merge(pending) { _, bid ->
+        rank++
+        total += bid * rank
+    }
+    return total
+}
+
+private inline fun merge(runs: List<Path>, onRecord: (key: Long, bid: Long) -> Unit) {
+    val readers = ArrayList<RunReader>(runs.size)
+    try {
+        runs.forEach { readers.add(RunReader(it)) }
+        val queue = PriorityQueue<RunReader>(maxOf(1, readers.size), compareBy { it.key })
+        readers.filter { it.advance() }.forEach(queue::add)
+        while (queue.isNotEmpty()) {
+            val reader = queue.poll()
+            onRecord(reader.key, reader.bid)
+            if (reader.advance()) queue.add(reader)
+        }
+    } finally {
+        readers.forEach { it.close() }
+    }
+}
+
+private const val EXTERNAL_RUN_SIZE = 1 shl 22
+
+private const val EXTERNAL_FAN_IN = 256
+
+private fun LongArray.sortPacked() {
+    if (size >= PARALLEL_SORT_SIZE) java.util.Arrays.parallelSort(this) else sort()
+}
+
+private const val PARALLEL_SORT_SIZE = 1 shl 16
+
+/**
+ * Total winnings kept up to date as hands come and go, instead of re-sorting every hand on each change.
+ *
+ * Hands are indexed by their dense key, type first and then the card strengths in base 13, in two Fenwick
+ * trees holding the number of hands and the sum of their bids. Inserting a hand of rank `r` adds `bid * r`
+ * and, since every stronger hand moves up one rank, the sum of their bids; removing does the opposite.
+ * Equal hands are ranked in insertion order: a key held by several hands keeps the same two trees over the
+ * insertion sequence of its hands, so the rank of a hand among its ties and the bids of the ties after it are
+ * prefix sums too. A key held by a single hand keeps its bid and sequence in flat arrays instead, and only
+ * gets trees when a second hand arrives. Both operations take O(log n).
+ */
+class HandLeaderboard(private val withJoker: Boolean) {
+    private val counts = LongArray(KEY_SPACE + 1)
+    private val bidSums = LongArray(KEY_SPACE + 1)
+    private val ties = arrayOfNulls<TiedHands>(KEY_SPACE)
+    private val singleBids = LongArray(KEY_SPACE)
+    // sequence of the only hand of each key, -1 when the key has no hand or has ties
+    private val singleSequences = IntArray(KEY_SPACE) { -1 }
+    private val nextSequences = IntArray(KEY_SPACE)
+    var size = 0L
+        private set
+    var totalWinnings = 0L
+        private set
+
+    /**
+     * Adds a hand and returns the handle that removes it.
+     */
+    fun insert(cards: CharSequence, bid: Long): Long {
+        val key = denseKey(cards)
+        val sequence = nextSequences[key]
+        if (sequence == Int.MAX_VALUE) throw RuntimeException("Too many hands inserted with the cards $cards")
+        nextSequences[key]++
+        val rank = prefix(counts, key) + 1
+        totalWinnings += bid * rank + (prefix(bidSums, KEY_SPACE - 1) - prefix(bidSums, key))
+        val tied = ties[key]
+        when {
+            tied != null -> tied.add(sequence, bid)
+            singleSequences[key] < 0 -> {
+                singleSequences[key] = sequence
+                singleBids[key] = bid
+            }
+            else -> {
+                ties[key] = TiedHands(singleSequences[key]).apply {
+                    add(singleSequences[key], singleBids[key])
+                    add(sequence, bid)
+                }
+                singleSequences[key] = -1
+            }
+        }
+        add(key, 1, bid)
+        return (key.toLong() shl 32) or sequence.toLong()
+    }
+
+    fun remove(handle: Long) {
+        val key = (handle ushr 32).toInt()
+        val sequence = handle.toInt()
+        require(key in 0..<KEY_SPACE && sequence >= 0) { "No hand with handle $handle" }
+        val stronger = prefix(bidSums, KEY_SPACE - 1) - prefix(bidSums, key)
+        val tied = ties[key]
+        val bid: Long
+        if (tied == null) {
+            require(singleSequences[key] == sequence) { "No hand with handle $handle" }
+            bid = singleBids[key]
+            totalWinnings -= bid * (prefix(counts, key - 1) + 1) + stronger
+            singleSequences[key] = -1
+        } else {
+            require(tied.isPresent(sequence)) { "No hand with handle $handle" }
+            bid = tied.bidOf(sequence)
+            val rank = prefix(counts, key - 1) + tied.countBefore(sequence) + 1
+            totalWinnings -= bid * rank + tied.bidsAfter(sequence) + stronger
+            tied.remove(sequence)
+            if (tied.count == 1) {
+                val remaining = tied.first()
+                singleSequences[key] = remaining
+                singleBids[key] = tied.bidOf(remaining)
+                ties[key] = null
+            }
+        }
+        add(key, -1, -bid)
+    }
+
+    private fun add(key: Int, count: Long, bid: Long) {
+        size += count
+        var i = key + 1
+        while (i <= KEY_SPACE) {
+            counts[i] += count
+            bidSums[i] += bid
+            i += i and -i
+        }
+    }
+
+    /**
+     * Sum of the tree values for the keys up to [key], inclusive.
+     */
+    private fun prefix(tree: LongArray, key: Int): Long {
+        var sum = 0L
+        var i = key + 1
+        while (i > 0) {
+            sum += tree[i]
+            i -= i and -i
+        }
+        return sum
+    }
+
+    private fun denseKey(cards: CharSequence): Int {
+        require(cards.length == 5) { "A hand has 5 cards: $cards" }
+        var key = PackedHands.lookupHandType(cards, withJoker)
+        for (card in cards) {
+            require(card in "23456789TJQKA") { "Invalid card $card in $cards" }
+            val strength = PackedHands.cardStrength(card, withJoker)
+            // 13 ranks in strength order: strengths run 2..14 without jokers, and 1..10, 12..14 with them
+            val rank = when {
+                !withJoker -> strength - 2
+                strength <= 10 -> strength - 1
+                else -> strength - 2
+            }
+            key = key * 13 + rank
+        }
+        return key
+    }
+
+    companion object {
+        private const val KEY_SPACE = 7 * 13 * 13 * 13 * 13 * 13
+    }
+}
+
+/**
+ * The hands of one key in insertion order, as Fenwick trees of hand counts and bid sums over the insertion
+ * sequence, starting at the sequence [base] of the oldest hand. The trees double when full: the capacity is a
+ * power of two, so the only new node covering old positions is the last one, which covers all of them.
+ */
+private class TiedHands(private val base: Int) {
+    private var bids = LongArray(INITIAL_CAPACITY)
+    private var present = BooleanArray(INITIAL_CAPACITY)
+    private var counts = LongArray(INITIAL_CAPACITY + 1)
+    private var bidSums = LongArray(INITIAL_CAPACITY + 1)
+    private var next = 0
+    var count = 0
+        private set
+
+    fun add(sequence: Int, bid: Long) {
+        val position = sequence - base
+        while (position >= bids.size) grow()
+        next = position + 1
+        count++
+        bids[position] = bid
+        present[position] = true
+        update(position, 1, bid)
+    }
+
+    fun remove(sequence: Int) {
+        val position = sequence - base
+        present[position] = false
+        count--
+        update(position, -1, -bids[position])
+    }
+
+    fun isPresent(sequence: Int) = sequence - base in 0..<next && present[sequence - base]
+
+    fun bidOf(sequence: Int) = bids[sequence - base]
+
+    fun countBefore(sequence: Int) = prefix(counts, sequence - base - 1)
+
+    fun bidsAfter(sequence: Int) = prefix(bidSums, bids.size - 1) - prefix(bidSums, sequence - base)
+
+    /**
+     * Sequence of the oldest hand left, found by descending the count tree.
+     */
+    fun first(): Int {
+        var position = 0
+        var step = bids.size
+        while (step > 0) {
+            if (counts[position + step] == 0L) position += step
+            step = step shr 1
+        }
+        return base + position
+    }
+
+    private fun update(position: Int, count: Long, bid: Long) {
+        var i = position + 1
+        while (i < counts.size) {
+            counts[i] += count
+            bidSums[i] += bid
+            i += i and -i
+        }
+    }
+
+    private fun prefix(tree: LongArray, position: Int): Long {
+        var sum = 0L
+        var i = position + 1
+        while (i > 0) {
+            sum += tree[i]
+            i -= i and -i
+        }
+        return sum
+    }
+
+    private fun grow() {
+        val capacity = bids.size
+        if (capacity > Int.MAX_VALUE / 2) throw RuntimeException("Too many hands inserted with the same cards")
+        bids = bids.copyOf(capacity * 2)
+        present = present.copyOf(capacity * 2)
+        counts = counts.copyOf(capacity * 2 + 1).also { it[capacity * 2] = it[capacity] }
+        bidSums = bidSums.copyOf(capacity * 2 + 1).also { it[capacity * 2] = it[capacity] }
+    }
+
+    companion object {
+        private const val INITIAL_CAPACITY = 4
+    }
+}
+
+/**
+ * Hands packed into a single Long each, so ranking them is sorting primitive longs.
+ *
+ * From the high bits down, a key holds the hand type, the strength of each of the five cards in 4 bits,
+ * and the position of the hand in the input in the low 40 bits, which keeps equal hands in input order
+ * and leads back to the bid. The type takes 3 bits, so the sign bit stays clear and keys sort as signed longs.
+ */
+object PackedHands {
+    private const val INDEX_BITS = 40
+    const val MAX_INDEX = (1L shl INDEX_BITS) - 1
+    private const val CARD_BITS = 4
+    private const val TYPE_SHIFT = INDEX_BITS + 5 * CARD_BITS
+
+    // strength of each type, as in Hand.calcStrength, from high card to five of a kind
+    private val typeStrengths = longArrayOf(5, 10, 20, 25, 30, 40, 50)
+
+    fun cardStrength(value: Char, withJoker: Boolean) = when (value) {
+        'A' -> 14
+        'K' -> 13
+        'Q' -> 12
+        'J' -> if (withJoker) 1 else 11
+        'T' -> 10
+        else -> value.digitToInt()
+    }
+
+    fun pack(cards: CharSequence, withJoker: Boolean, index: Long): Long {
+        require(cards.length == 5) { "A hand has 5 cards: $cards" }
+        require(index in 0..MAX_INDEX) { "Hand index $index does not fit in $INDEX_BITS bits" }
+        var key = lookupHandType(cards, withJoker).toLong()
+        for (card in cards) {
+            key = (key shl CARD_BITS) or cardStrength(card, withJoker).toLong()
+        }
+        return (key shl INDEX_BITS) or index
+    }
+
+    fun indexOf(key: Long) = key and MAX_INDEX
+
+    private const val CARDS = "23456789TJQKA"
+    private val cardIndexes = IntArray(128) { -1 }.also { indexes ->
+        CARDS.forEachIndexed { idx, card -> indexes[card.code] = idx }
+    }
+
+    /**
+     * Type of every hand of real cards, one byte each, indexed by the hand read as a base 13 number.
+     * Built once on first use for each joker mode.
+     */
+    private val typeTables = arrayOf(
+        lazy { buildTypeTable(withJoker = false) },
+        lazy { buildTypeTable(withJoker = true) },
+    )
+
+    private fun buildTypeTable(withJoker: Boolean): ByteArray {
+        var size = 1
+        repeat(5) { size *= CARDS.length }
+        val hand = CharArray(5)
+        return ByteArray(size) { idx ->
+            var rest = idx
+            for (i in 4 downTo 0) {
+                hand[i] = CARDS[rest % CARDS.length]
+                rest /= CARDS.length
+            }
+            handType(String(hand), withJoker).toByte()
+        }
+    }
+
+    /**
+     * Same as [handType], read from the type table. Hands with other characters than the 13 cards are
+     * classified directly.
+     */
+    fun lookupHandType(cards: CharSequence, withJoker: Boolean): Int {
+        var idx = 0
+        for (card in cards) {
+            val cardIdx = if (card.code < cardIndexes.size) cardIndexes[card.code] else -1
+            if (cardIdx < 0) return handType(cards, withJoker)
+            idx = idx * CARDS.length + cardIdx
+        }
+        return typeTables[if (withJoker) 1 else 0].value[idx].toInt()
+    }
+
+    fun typeOf(key: Long) = (key ushr TYPE_SHIFT).toInt()
+
+    fun typeStrength(type: Int) = typeStrengths[type]
+
+    /**
+     * Type of the hand from 0 (high card) to 6 (five of a kind), with the jokers joining the largest group.
+     */
+    fun handType(cards: CharSequence, withJoker: Boolean): Int {
+        var jokers = 0
+        var largest = 0
+        var secondLargest = 0
+        for (i in cards.indices) {
+            if (withJoker && cards[i] == 'J') {
+                jokers++
+                continue
+            }
+            var count = 0
+            var seenBefore = false
+            for (j in cards.indices) {
+                if (cards[j] == cards[i]) {
+                    count++
+                    if (j < i) seenBefore = true
+                }
+            }
+            if (seenBefore) continue
+            if (count > largest) {
+                secondLargest = largest
+                largest = count
+            } else if (count > secondLargest) {
+                secondLargest = count
+            }
+        }
+        largest += jokers
+        return when {
+            largest == 5 -> 6
+            largest == 4 -> 5
+            largest == 3 && secondLargest == 2 -> 4
+            largest == 3 -> 3
+            largest == 2 && secondLargest == 2 -> 2
+            largest == 2 -> 1
+            else -> 0
+        }
+    }
+}
 
 fun readHands(lines: List<String>, withJoker: Boolean): List<Hand> {
     return lines.map {
@@ -121,8 +624,26 @@ fun readCards(cards: String, withJoker: Boolean) = cards.map {
     CamelCard(it, withJoker)
 }
 
-// Just tests for the calcStrength function
+// Just tests for the calcStrength function and the hand type table
 fun runTests7() {
+    assertHand(
+        Hand(cards = readCards("JJJJJ", withJoker = true), bid = 1), expected = 50
+    )
+    assertHand(
+        Hand(cards = readCards("JJJJ2", withJoker = false), bid = 1), expected = 40
+    )
+    assertHand(
+        Hand(cards = readCards("QQJKK", withJoker = true), bid = 1), expected = 30
+    )
+    assertHand(
+        Hand(cards = readCards("QQJKK", withJoker = false), bid = 1), expected = 20
+    )
+    assertHand(
+        Hand(cards = readCards("23456", withJoker = false), bid = 1), expected = 5
+    )
+    assertHand(
+        Hand(cards = readCards("2345J", withJoker = true), bid = 1), expected = 10
+    )
     assertHand(
         Hand(cards = readCards("22222", withJoker = true), bid = 1), expected = 50
     )
@@ -175,4 +696,6 @@ fun runTests7() {
 
 fun assertHand(h: Hand, expected: Long) {
     assertEquals(expected, h.calcStrength())
+    val cards = h.cards.joinToString("")
+    assertEquals(expected, PackedHands.typeStrength(PackedHands.lookupHandType(cards, h.cards.first().withJoker)))
 }
\ No newline at end of file
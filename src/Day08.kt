@@ -1,68 +1,338 @@
 import java.math.BigInteger
+import java.util.BitSet
 
 data class Place(val id: String, val left: String, val right: String) {
     fun isStart() = this.id.endsWith("A")
     fun isEnd() = this.id.endsWith("Z")
 }
 
-data class Cycle(val startAtStep: Int, val length: Int)
+data class Cycle(val startAtStep: Long, val length: Long)
 
 fun BigInteger.lcm(another: BigInteger): BigInteger {
     return this.divide(this.gcd(another)).multiply(another)
 }
 
 data class WastelandMap(val places: Map<String, Place>) {
+    val graph: PlaceGraph by lazy { PlaceGraph.of(places) }
 
     class Traversal(
-        start: Place,
-        private val instructions: String,
-        private val places: Map<String, Place>
+        start: Int,
+        private val instructions: Instructions,
+        private val graph: PlaceGraph
     ) {
-        private var steps = 0
-        private var current: String = start.id
+        private var steps = 0L
+        private var idx = 0
+        private var current = start
         fun getSteps() = this.steps
 
-        fun stepToNext(): Place {
-            val idx = steps % instructions.length
-            val place = places[current] ?: throw RuntimeException("Invalid place $current")
+        fun stepToNext(): Int {
+            current = if (instructions.goesRight[idx]) graph.right[current] else graph.left[current]
             steps += 1
-            current = if (instructions[idx] == 'L') {
-                place.left
-            } else {
-                place.right
+            idx += 1
+            if (idx == instructions.size) idx = 0
+            return current
+        }
+    }
+
+    /**
+     * Steps from [start] to ZZZ, found through a [JumpTable]. A walk that has not reached ZZZ after visiting
+     * every (place, instruction) state never will, so the table covers that many steps.
+     */
+    fun traverse(start: Place, instructions: String): Long {
+        val parsed = Instructions(instructions)
+        val end = BitSet(graph.size).apply { set(graph.indexOf("ZZZ")) }
+        val table = JumpTable(graph, parsed, end, graph.size.toLong() * parsed.size)
+        val steps = table.stepsToTarget(graph.indexOf(start.id))
+        if (steps < 0) throw RuntimeException("ZZZ is never reached from ${start.id}")
+        return steps
+    }
+
+    fun collectCycleInfo(start: Place, instructions: String): Cycle {
+        return findCycle(graph.indexOf(start.id), Instructions(instructions))
+    }
+
+    /**
+     * Finds where the walk from [start] enters a cycle and how long the cycle is, with Brent's algorithm.
+     *
+     * The state of a walk is the place together with the position in the instructions, packed in a Long.
+     * Only a couple of states are kept at any time, so the memory used does not grow with the path.
+     */
+    fun findCycle(start: Int, instructions: Instructions): Cycle {
+        val initial = state(start, 0)
+        var power = 1L
+        var length = 1L
+        var tortoise = initial
+        var hare = next(initial, instructions)
+        while (tortoise != hare) {
+            if (power == length) {
+                tortoise = hare
+                power *= 2
+                length = 0
             }
-            return places[current]!!
+            hare = next(hare, instructions)
+            length++
         }
+
+        tortoise = initial
+        hare = initial
+        for (i in 0..<length) {
+            hare = next(hare, instructions)
+        }
+        var startAtStep = 0L
+        while (tortoise != hare) {
+            tortoise = next(tortoise, instructions)
+            hare = next(hare, instructions)
+            startAtStep++
+        }
+        return Cycle(startAtStep, length)
+    }
+
+    private fun state(place: Int, idx: Int) = (place.toLong() shl 32) or idx.toLong()
+
+    private fun next(state: Long, instructions: Instructions): Long {
+        val place = (state ushr 32).toInt()
+        val idx = state.toInt()
+        val nextPlace = if (instructions.goesRight[idx]) graph.right[place] else graph.left[place]
+        return state(nextPlace, if (idx + 1 == instructions.size) 0 else idx + 1)
     }
 
-    fun traverse(start: Place, instructions: String): Int {
-        val traversal = Traversal(start, instructions, this.places)
-        var current = start.id
-        while (current != "ZZZ") {
-            current = traversal.stepToNext().id
+    /**
+     * Finds the cycle of the walk from [start] with [findCycle], then walks the tail and one turn of the
+     * cycle once more to collect every step it is on an end place.
+     */
+    fun ghostCycle(start: Int, instructions: Instructions): GhostCycle {
+        val cycle = findCycle(start, instructions)
+        val tailHits = mutableListOf<Long>()
+        val cycleHits = mutableListOf<Long>()
+        val traversal = Traversal(start, instructions, graph)
+        var current = start
+        while (traversal.getSteps() < cycle.startAtStep + cycle.length) {
+            if (graph.ends[current]) {
+                if (traversal.getSteps() < cycle.startAtStep) tailHits.add(traversal.getSteps())
+                else cycleHits.add(traversal.getSteps())
+            }
+            current = traversal.stepToNext()
         }
-        return traversal.getSteps()
+        return GhostCycle(
+            tailLength = cycle.startAtStep,
+            length = cycle.length,
+            tailHits = tailHits.toLongArray(),
+            cycleHits = cycleHits.toLongArray(),
+        )
     }
 
-    fun collectCycleInfo(start: Place, instructions: String): Cycle {
-        val visits = mutableMapOf<String, Int>()
-        val traversal = Traversal(start, instructions, this.places)
-        var curr = start
-        while (true) {
-            if (curr.isEnd()) {
-                if (visits.containsKey(curr.id)) {
-                    return Cycle(
-                        startAtStep = visits[curr.id]!!,
-                        length = traversal.getSteps() - visits[curr.id]!!
-                    )
-                }
+    /**
+     * Steps until the walks from all the start places are on end places at the same time, or null if that
+     * never happens.
+     *
+     * Cycles are detected in parallel. A step within the longest tail has to be one of the tail hits of
+     * that walk, so those are checked one by one. Past every tail, each walk is on an end place when the
+     * step is congruent to one of its cycle hits modulo its cycle length, and the congruences of every
+     * combination of hits are merged with the Chinese Remainder Theorem, which also handles lengths that
+     * are not coprime.
+     */
+    fun stepsUntilAllAtEnd(instructions: String): BigInteger? {
+        val compiled = Instructions(instructions)
+        val starts = graph.starts.stream().boxed().toList()
+        val cycles = starts.parallelStream().map { ghostCycle(it, compiled) }.toList()
+        if (cycles.isEmpty()) return null
+
+        val longestTail = cycles.maxBy { it.tailLength }
+        longestTail.tailHits.firstOrNull { step -> cycles.all { it.isHit(step) } }?.let {
+            return BigInteger.valueOf(it)
+        }
+
+        val allTailsEnd = BigInteger.valueOf(longestTail.tailLength)
+        var lowest: BigInteger? = null
+        fun combine(idx: Int, congruence: Congruence) {
+            if (idx == cycles.size) {
+                val steps = congruence.lowestAtLeast(allTailsEnd)
+                if (lowest == null || steps < lowest) lowest = steps
+                return
+            }
+            val cycle = cycles[idx]
+            for (hit in cycle.cycleHits) {
+                val next = Congruence(BigInteger.valueOf(hit), BigInteger.valueOf(cycle.length))
+                congruence.merge(next)?.let { combine(idx + 1, it) }
+            }
+        }
+        combine(0, Congruence(BigInteger.ZERO, BigInteger.ONE))
+        return lowest
+    }
+}
+
+/**
+ * The steps at which a walk is on an end place: [tailHits] before the cycle starts at [tailLength], and
+ * [cycleHits] within the first turn of the cycle, repeating every [length] steps.
+ */
+class GhostCycle(val tailLength: Long, val length: Long, val tailHits: LongArray, val cycleHits: LongArray) {
+    fun isHit(step: Long): Boolean {
+        if (step < tailLength) return tailHits.binarySearch(step) >= 0
+        return cycleHits.binarySearch(tailLength + (step - tailLength) % length) >= 0
+    }
+}
+
+/**
+ * The steps `x` with `x = remainder (mod modulus)`.
+ */
+data class Congruence(val remainder: BigInteger, val modulus: BigInteger) {
+
+    /**
+     * Steps satisfying both congruences, or null if there are none. The moduli do not need to be coprime.
+     */
+    fun merge(other: Congruence): Congruence? {
+        val gcd = modulus.gcd(other.modulus)
+        val diff = other.remainder - remainder
+        if (diff.mod(gcd).signum() != 0) return null
+        val otherReduced = other.modulus / gcd
+        val k = if (otherReduced == BigInteger.ONE) BigInteger.ZERO
+            else (diff / gcd).multiply((modulus / gcd).modInverse(otherReduced)).mod(otherReduced)
+        val lcm = modulus.lcm(other.modulus)
+        return Congruence((remainder + modulus * k).mod(lcm), lcm)
+    }
+
+    fun lowestAtLeast(min: BigInteger): BigInteger {
+        if (remainder >= min) return remainder
+        val turns = (min - remainder + modulus - BigInteger.ONE) / modulus
+        return remainder + turns * modulus
+    }
+}
+
+/**
+ * The places interned to dense ints, with the left and right exits of every place as int arrays and the
+ * start and end places as bitsets, so walking the map is pure array indexing.
+ */
+class PlaceGraph(
+    val ids: Array<String>,
+    val left: IntArray,
+    val right: IntArray,
+    val starts: BitSet,
+    val ends: BitSet,
+) {
+    private val indexes = ids.withIndex().associate { (idx, id) -> id to idx }
+
+    val size: Int get() = ids.size
+
+    fun indexOf(id: String) = indexes[id] ?: throw RuntimeException("Invalid place $id")
+
+    companion object {
+        fun of(places: Map<String, Place>): PlaceGraph {
+            val ids = places.keys.toTypedArray()
+            val indexes = ids.withIndex().associate { (idx, id) -> id to idx }
+            val index = { id: String -> indexes[id] ?: throw RuntimeException("Invalid place $id") }
+            val starts = BitSet(ids.size)
+            val ends = BitSet(ids.size)
+            ids.forEachIndexed { idx, id ->
+                val place = places.getValue(id)
+                if (place.isStart()) starts.set(idx)
+                if (place.isEnd()) ends.set(idx)
             }
-            visits[curr.id] = traversal.getSteps()
-            curr = traversal.stepToNext()
+            return PlaceGraph(
+                ids = ids,
+                left = IntArray(ids.size) { index(places.getValue(ids[it]).left) },
+                right = IntArray(ids.size) { index(places.getValue(ids[it]).right) },
+                starts = starts,
+                ends = ends,
+            )
         }
     }
 }
 
+/**
+ * Binary lifting over whole passes of the instructions, for traversals billions of steps long.
+ *
+ * For every place, `jumps[k]` is where `2^k` passes starting there end, and `hits[k]` tells whether one of
+ * the [targets] is reached on the way. Walking N steps takes one jump per bit of the number of passes plus
+ * at most one partial pass, and the first target is found by descending the levels while no target is
+ * hit. The table covers up to [maxSteps] steps.
+ */
+class JumpTable(
+    private val graph: PlaceGraph,
+    private val instructions: Instructions,
+    private val targets: BitSet,
+    maxSteps: Long,
+) {
+    private val levels: Int
+
+    init {
+        require(maxSteps > 0) { "The table must cover at least one step, not $maxSteps" }
+        levels = maxOf(1, 64 - java.lang.Long.numberOfLeadingZeros(maxSteps / instructions.size))
+    }
+
+    private val jumps = Array(levels) { IntArray(0) }
+    private val hits = Array(levels) { BitSet(graph.size) }
+
+    init {
+        jumps[0] = IntArray(graph.size) { start ->
+            var current = start
+            for (idx in 0..<instructions.size) {
+                current = step(current, idx)
+                if (targets[current]) hits[0].set(start)
+            }
+            current
+        }
+        for (k in 1..<levels) {
+            val half = jumps[k - 1]
+            jumps[k] = IntArray(graph.size) { start ->
+                if (hits[k - 1][start] || hits[k - 1][half[start]]) hits[k].set(start)
+                half[half[start]]
+            }
+        }
+    }
+
+    /**
+     * The place reached after [steps] steps.
+     */
+    fun positionAfter(start: Int, steps: Long): Int {
+        val passes = steps / instructions.size
+        require(levels >= 63 || passes < 1L shl levels) { "$steps steps is beyond the table" }
+        var current = start
+        for (k in 0..<levels) {
+            if ((passes ushr k) and 1L == 1L) current = jumps[k][current]
+        }
+        for (idx in 0..<(steps % instructions.size).toInt()) {
+            current = step(current, idx)
+        }
+        return current
+    }
+
+    /**
+     * Steps until the first target is reached, 0 if [start] is one, or -1 if none is reached within the
+     * steps covered by the table or the count does not fit in a Long.
+     */
+    fun stepsToTarget(start: Int): Long {
+        if (targets[start]) return 0
+        var current = start
+        var passes = 0L
+        for (k in levels - 1 downTo 0) {
+            if (!hits[k][current]) {
+                current = jumps[k][current]
+                passes += 1L shl k
+            }
+        }
+        if (!hits[0][current]) return -1
+        var steps = 0
+        for (idx in 0..<instructions.size) {
+            current = step(current, idx)
+            steps++
+            if (targets[current]) break
+        }
+        if (passes > (Long.MAX_VALUE - steps) / instructions.size) return -1
+        return passes * instructions.size + steps
+    }
+
+    private fun step(current: Int, idx: Int) =
+        if (instructions.goesRight[idx]) graph.right[current] else graph.left[current]
+}
+
+/**
+ * The instructions as one flag per step, true when going right.
+ */
+class Instructions(text: String) {
+    val goesRight = BooleanArray(text.length) { text[it] == 'R' }
+    val size: Int get() = goesRight.size
+}
+
 fun main() {
     val lines = readInput("input")
     val wastelandMap = WastelandMap(readPlaces(lines.drop(1)))
@@ -72,17 +342,7 @@ fun main() {
     val part1 = wastelandMap.traverse(start, instructions)
     println(part1)
 
-    val lcm = BigInteger.ONE
-    val allStartingPlaces = wastelandMap.places.values.filter { it.isStart() }
-    val part2 = allStartingPlaces.map {
-        val cycle = wastelandMap.collectCycleInfo(it, instructions)
-        println(cycle)
-        cycle
-        // For all cycles, the initial offset is equal to the length. This way, we can reduce the problem
-        // to calculating the LCM of all cycle lengths
-    }.fold(lcm) { curr, cycle ->
-        curr.lcm(BigInteger.valueOf(cycle.length.toLong()))
-    }
+    val part2 = wastelandMap.stepsUntilAllAtEnd(instructions)
     println("Part2: $part2")
 }
 
@@ -1,46 +1,56 @@
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.function.BiFunction;
-import java.util.function.BinaryOperator;
-import java.util.stream.Stream;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.StreamSupport;
 
 public class Day09 {
 
     private static final boolean DEBUG = false;
 
     public record ValueHistory(long[] values) {
-        public long extrapolateNextValue(BiFunction<long[], Integer, Long> valueSelector,  BinaryOperator<Long> reducer) {
-            var currValues = Arrays.copyOf(values, values.length);
-            var selectedValues = new LinkedList<Long>();
-            var level = 0;
-            selectedValues.addFirst(valueSelector.apply(currValues, level));
-            do {
-                nextLevel(currValues, level);
-                level++;
-                selectedValues.addFirst(valueSelector.apply(currValues, level));
-            } while (!isAllZeros(currValues, level));
-            if (DEBUG) {
-                System.out.println("Last Values: " + selectedValues);
-            }
-            return selectedValues.stream().reduce(0L, reducer);
-        }
-
-        private void nextLevel(long[] currValues, int level) {
-            for (int i = 0; i+1 < currValues.length-level; i++) {
-                currValues[i] = currValues[i+1] - currValues[i];
-            }
+        public Extrapolation extrapolate() {
+            return extrapolate(values, values.length);
         }
 
-        private boolean isAllZeros(long[] currentValues, int level) {
-            for (int i = 0; i < currentValues.length-level; i++) {
-                if (currentValues[i] != 0) {
-                    return false;
+        /**
+         * Extrapolates the next and the previous value of the first {@code length} values in one pass.
+         * Building the difference pyramid down to zeros amounts to fitting a polynomial of degree
+         * {@code length - 1}, so both values are dot products of the history with signed binomial
+         * coefficients: {@code next = sum (-1)^(n-1-i) C(n, i) v[i]} and
+         * {@code previous = sum (-1)^i C(n, i+1) v[i]}.
+         */
+        public static Extrapolation extrapolate(long[] values, int length) {
+            var row = BinomialRow.forLength(length);
+            if (row.fitsInLong()) {
+                try {
+                    long next = 0;
+                    long previous = 0;
+                    for (int i = 0; i < length; i++) {
+                        next = Math.addExact(next, Math.multiplyExact(row.next()[i], values[i]));
+                        previous = Math.addExact(previous, Math.multiplyExact(row.previous()[i], values[i]));
+                    }
+                    return new Extrapolation(next, previous);
+                } catch (ArithmeticException e) {
+                    // an intermediate result overflowed, redo it exactly below
                 }
             }
-            return true;
+            var next = BigInteger.ZERO;
+            var previous = BigInteger.ZERO;
+            for (int i = 0; i < length; i++) {
+                var value = BigInteger.valueOf(values[i]);
+                next = next.add(row.exactNext()[i].multiply(value));
+                previous = previous.add(row.exactPrevious()[i].multiply(value));
+            }
+            return new Extrapolation(next.longValueExact(), previous.longValueExact());
         }
 
         @Override
@@ -49,47 +59,190 @@ public class Day09 {
         }
     }
 
+    public record Extrapolation(long next, long previous) {
+    }
+
+    /**
+     * Signed binomial coefficients used to extrapolate histories of one length, computed once per length.
+     * The long rows are only usable when every coefficient fits in a long.
+     */
+    private record BinomialRow(long[] next, long[] previous, BigInteger[] exactNext, BigInteger[] exactPrevious,
+                               boolean fitsInLong) {
+
+        private static final Map<Integer, BinomialRow> ROWS = new ConcurrentHashMap<>();
+
+        static BinomialRow forLength(int length) {
+            return ROWS.computeIfAbsent(length, BinomialRow::compute);
+        }
+
+        private static BinomialRow compute(int length) {
+            var binomials = new BigInteger[length + 1];
+            binomials[0] = BigInteger.ONE;
+            for (int k = 1; k <= length; k++) {
+                binomials[k] = binomials[k - 1].multiply(BigInteger.valueOf(length - k + 1)).divide(BigInteger.valueOf(k));
+            }
+            var exactNext = new BigInteger[length];
+            var exactPrevious = new BigInteger[length];
+            var next = new long[length];
+            var previous = new long[length];
+            var fitsInLong = true;
+            for (int i = 0; i < length; i++) {
+                exactNext[i] = (length - 1 - i) % 2 == 0 ? binomials[i] : binomials[i].negate();
+                exactPrevious[i] = i % 2 == 0 ? binomials[i + 1] : binomials[i + 1].negate();
+                fitsInLong &= exactNext[i].bitLength() < Long.SIZE && exactPrevious[i].bitLength() < Long.SIZE;
+                next[i] = exactNext[i].longValue();
+                previous[i] = exactPrevious[i].longValue();
+            }
+            return new BinomialRow(next, previous, exactNext, exactPrevious, fitsInLong);
+        }
+    }
+
     public static void main(String[] args) {
-        Day09 day09 = new Day09();
-        var lines = day09.readLines().toList();
-
-        var part1 = lines.stream().map(day09::toValueHistory)
-            .mapToLong(v -> {
-                if (DEBUG)
-                    System.out.println(v);
-                return v.extrapolateNextValue(
-                        (values, level) -> values[values.length-1-level],
-                        Long::sum
-                );
-            }).sum();
-        System.out.println("Part 1: " + part1);
-
-        var part2 = lines.stream().map(day09::toValueHistory)
-                .mapToLong(v -> {
-                    var val = v.extrapolateNextValue(
-                            (values, level) -> values[0],
-                            (acc, curr) -> curr - acc
-                    );
-                    if (DEBUG)
-                        System.out.println(v + " -> " + val);
-                    return val;
-                }).sum();
-        System.out.println("Part 2: " + part2);
+        var sums = solve(Path.of("./src/input.txt"));
+        System.out.println("Part 1: " + sums.next());
+        System.out.println("Part 2: " + sums.previous());
+    }
+
+    /**
+     * Solves both parts reading the input once. The file is memory-mapped in newline-aligned chunks that a
+     * parallel stream spreads across the cores. Numbers are parsed straight from the bytes into a long[]
+     * reused by each worker, and the next and previous values of every history are added up together.
+     */
+    public static Extrapolation solve(Path input) {
+        try (var channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            return StreamSupport.stream(new ChunkSpliterator(channel, 0, channel.size()), true)
+                    .map(chunk -> solveChunk(channel, chunk))
+                    .reduce(new Extrapolation(0, 0),
+                            (a, b) -> new Extrapolation(a.next() + b.next(), a.previous() + b.previous()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
-    public ValueHistory toValueHistory(String line)  {
-        return new ValueHistory(
-            Stream.of(line.split("\\s"))
-                .mapToLong(Long::parseLong)
-                .toArray()
-        );
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private static final ThreadLocal<long[]> HISTORY_BUFFER = ThreadLocal.withInitial(() -> new long[64]);
+
+    private record Chunk(long start, long end) {
+    }
+
+    /**
+     * Splits a range of the file in halves, moving every split point to the start of the next line, until
+     * the parts are at most {@link #CHUNK_SIZE} bytes long. Each part is then a single {@link Chunk}.
+     */
+    private static final class ChunkSpliterator implements Spliterator<Chunk> {
+        private final FileChannel channel;
+        private long start;
+        private final long end;
+
+        ChunkSpliterator(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Chunk> action) {
+            if (start >= end) {
+                return false;
+            }
+            action.accept(new Chunk(start, end));
+            start = end;
+            return true;
+        }
+
+        @Override
+        public Spliterator<Chunk> trySplit() {
+            if (end - start <= CHUNK_SIZE) {
+                return null;
+            }
+            long mid = nextLineStart(start + (end - start) / 2);
+            if (mid >= end) {
+                return null;
+            }
+            var prefix = new ChunkSpliterator(channel, start, mid);
+            start = mid;
+            return prefix;
+        }
+
+        private long nextLineStart(long position) {
+            try {
+                var buffer = ByteBuffer.allocate(4096);
+                long offset = position - 1;
+                while (offset < end) {
+                    buffer.clear();
+                    int read = channel.read(buffer, offset);
+                    if (read <= 0) {
+                        break;
+                    }
+                    for (int i = 0; i < read; i++) {
+                        if (buffer.get(i) == '\n') {
+                            return offset + i + 1;
+                        }
+                    }
+                    offset += read;
+                }
+                return end;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public long estimateSize() {
+            return (end - start + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL | IMMUTABLE;
+        }
     }
 
-    public Stream<String> readLines()  {
+    private static Extrapolation solveChunk(FileChannel channel, Chunk chunk) {
+        ByteBuffer bytes;
         try {
-            return new BufferedReader(new FileReader("./src/input.txt")).lines();
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e);
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, chunk.start(), chunk.end() - chunk.start());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        var values = HISTORY_BUFFER.get();
+        long next = 0;
+        long previous = 0;
+        int size = 0;
+        int i = 0;
+        int limit = bytes.limit();
+        while (i <= limit) {
+            byte b = i < limit ? bytes.get(i) : (byte) '\n';
+            if (b == '\n') {
+                if (size > 0) {
+                    var extrapolation = ValueHistory.extrapolate(values, size);
+                    if (DEBUG)
+                        System.out.println(Arrays.toString(Arrays.copyOf(values, size)) + " -> " + extrapolation);
+                    next += extrapolation.next();
+                    previous += extrapolation.previous();
+                    size = 0;
+                }
+                i++;
+            } else if (b == '-' || (b >= '0' && b <= '9')) {
+                boolean negative = b == '-';
+                if (negative) {
+                    i++;
+                }
+                long value = 0;
+                while (i < limit && bytes.get(i) >= '0' && bytes.get(i) <= '9') {
+                    value = value * 10 + (bytes.get(i) - '0');
+                    i++;
+                }
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, size * 2);
+                    HISTORY_BUFFER.set(values);
+                }
+                values[size++] = negative ? -value : value;
+            } else {
+                i++;
+            }
         }
+        return new Extrapolation(next, previous);
     }
 }
@@ -3,10 +3,15 @@ import java.security.MessageDigest
 import kotlin.io.path.Path
 import kotlin.io.path.readLines
 
+/**
+ * Path of the given input txt file.
+ */
+fun inputPath(name: String) = Path("src/$name.txt")
+
 /**
  * Reads lines from the given input txt file.
  */
-fun readInput(name: String) = Path("src/$name.txt").readLines()
+fun readInput(name: String) = inputPath(name).readLines()
 
 /**
  * Converts string to md5 hash.